@@ -1,44 +1,19 @@
 package com.craftinginterpreters.lox;
 
-public class AstPrinter implements Expr.Visitor<String> {
+import java.io.IOException;
 
-    String print(Expr expr) {
-        return expr.accept(this);
-    }
-
-    @Override
-    public String visitBinaryExpr(Expr.Binary expr) {
-        return parenthesise(expr.operator.lexeme, expr.left, expr.right);
-    }
-
-    @Override
-    public String visitGroupingExpr(Expr.Grouping expr) {
-        return parenthesise("group", expr.expression);
-    }
-
-    @Override
-    public String visitLiteralExpr(Expr.Literal expr) {
-        if (expr.value == null) {
-            return "nil";
-        }
-        return expr.value.toString();
-    }
-
-    @Override
-    public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesise(expr.operator.lexeme, expr.right);
-    }
+//prints an expression as an S-expression string - see AstWriter, which this is a
+//wrapper around, for writing big trees straight to a stream
+public class AstPrinter {
 
-    private String parenthesise(String name, Expr... exprs) {
+    String print(Expr expr) {
         StringBuilder builder = new StringBuilder();
-
-        builder.append("(").append(name);
-        for (Expr expr : exprs) {
-            builder.append(" ");
-            builder.append(expr.accept(this));
+        try {
+            new AstWriter(builder, AstWriter.Format.SEXPR, false).write(expr);
+        } catch (IOException error) {
+            //a StringBuilder never throws
+            throw new AssertionError(error);
         }
-        builder.append(")");
-
         return builder.toString();
     }
 /*
@@ -0,0 +1,237 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Writes syntax trees straight to an Appendable (a Writer, a PrintStream, a StringBuilder...)
+ * as S-expressions or JSON, optionally with the line each node came from
+ *
+ * Nothing is built up in memory: every node's text goes out as soon as the node is reached,
+ * so a dump takes time linear in the size of the tree. The tree is walked with an explicit
+ * stack of the work still to do (nodes, and the brackets and separators that follow them),
+ * so depth is only limited by the heap, and the only extra memory is that stack
+ *
+ * S-expressions look like AstPrinter's: (+ 1.0 (group (- 2.0))), with @line after the head
+ * of every node that has a token. JSON nodes are objects with a "type" and one member per
+ * field, plus "line" where the node has a token
+ */
+class AstWriter {
+
+    enum Format { SEXPR, JSON }
+
+    private final Appendable out;
+    private final Format format;
+    private final boolean lines;
+
+    //work still to do, next item last: nodes to write, and fixed text to write after them
+    private final List<Object> pending = new ArrayList<>();
+
+    AstWriter(Appendable out, Format format, boolean lines) {
+        this.out = out;
+        this.format = format;
+        this.lines = lines;
+    }
+
+    void write(Expr expr) throws IOException {
+        pending.add(expr);
+        drain();
+    }
+
+    void write(Stmt stmt) throws IOException {
+        pending.add(stmt);
+        drain();
+    }
+
+    //a whole program - one S-expression per line, or a JSON array
+    void write(List<Stmt> statements) throws IOException {
+        if (format == Format.JSON) out.append('[');
+        for (int i = 0; i < statements.size(); i++) {
+            if (format == Format.JSON && i > 0) out.append(',');
+            write(statements.get(i));
+            if (format == Format.SEXPR) out.append('\n');
+        }
+        if (format == Format.JSON) out.append("]\n");
+    }
+
+    private void drain() throws IOException {
+        try {
+            while (!pending.isEmpty()) {
+                Object item = pending.remove(pending.size() - 1);
+                if (item instanceof String) {
+                    out.append((String)item);
+                } else if (item instanceof Expr) {
+                    if (format == Format.JSON) json((Expr)item); else sexpr((Expr)item);
+                } else {
+                    if (format == Format.JSON) json((Stmt)item); else sexpr((Stmt)item);
+                }
+            }
+        } finally {
+            //after an IOException the writer is still usable for the next tree
+            pending.clear();
+        }
+    }
+
+    //queue items to be written, in the order given, before anything already queued
+    private void then(Object... items) {
+        for (int i = items.length - 1; i >= 0; i--) {
+            pending.add(items[i]);
+        }
+    }
+
+    private void sexpr(Expr expr) throws IOException {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            out.append('(').append(binary.operator.lexeme);
+            line(binary.operator);
+            then(" ", binary.left, " ", binary.right, ")");
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            out.append('(').append(unary.operator.lexeme);
+            line(unary.operator);
+            then(" ", unary.right, ")");
+        } else if (expr instanceof Expr.Grouping) {
+            out.append("(group");
+            then(" ", ((Expr.Grouping)expr).expression, ")");
+        } else if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+            out.append("(call");
+            line(call.paren);
+            pending.add(")");
+            for (int i = call.arguments.size() - 1; i >= 0; i--) {
+                then(" ", call.arguments.get(i));
+            }
+            then(" ", call.callee);
+        } else if (expr instanceof Expr.Variable) {
+            Token name = ((Expr.Variable)expr).name;
+            out.append(name.lexeme);
+            line(name);
+        } else {
+            Object value = ((Expr.Literal)expr).value;
+            out.append(value == null ? "nil" : value.toString());
+        }
+    }
+
+    private void sexpr(Stmt stmt) throws IOException {
+        if (stmt instanceof Stmt.Print) {
+            out.append("(print");
+            then(" ", ((Stmt.Print)stmt).expression, ")");
+        } else if (stmt instanceof Stmt.Bench) {
+            Stmt.Bench bench = (Stmt.Bench)stmt;
+            out.append("(bench");
+            line(bench.keyword);
+            then(" ", bench.iterations, " ", bench.expression, ")");
+        } else {
+            out.append("(;");
+            then(" ", ((Stmt.Expression)stmt).expression, ")");
+        }
+    }
+
+    private void json(Expr expr) throws IOException {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            out.append("{\"type\":\"Binary\",\"operator\":");
+            string(binary.operator.lexeme);
+            line(binary.operator);
+            out.append(",\"left\":");
+            then(binary.left, ",\"right\":", binary.right, "}");
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            out.append("{\"type\":\"Unary\",\"operator\":");
+            string(unary.operator.lexeme);
+            line(unary.operator);
+            out.append(",\"right\":");
+            then(unary.right, "}");
+        } else if (expr instanceof Expr.Grouping) {
+            out.append("{\"type\":\"Grouping\",\"expression\":");
+            then(((Expr.Grouping)expr).expression, "}");
+        } else if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+            out.append("{\"type\":\"Call\"");
+            line(call.paren);
+            out.append(",\"callee\":");
+            pending.add("]}");
+            for (int i = call.arguments.size() - 1; i >= 0; i--) {
+                pending.add(call.arguments.get(i));
+                if (i > 0) pending.add(",");
+            }
+            then(call.callee, ",\"arguments\":[");
+        } else if (expr instanceof Expr.Variable) {
+            Token name = ((Expr.Variable)expr).name;
+            out.append("{\"type\":\"Variable\",\"name\":");
+            string(name.lexeme);
+            line(name);
+            out.append('}');
+        } else {
+            out.append("{\"type\":\"Literal\",\"value\":");
+            value(((Expr.Literal)expr).value);
+            out.append('}');
+        }
+    }
+
+    private void json(Stmt stmt) throws IOException {
+        if (stmt instanceof Stmt.Print) {
+            out.append("{\"type\":\"Print\",\"expression\":");
+            then(((Stmt.Print)stmt).expression, "}");
+        } else if (stmt instanceof Stmt.Bench) {
+            Stmt.Bench bench = (Stmt.Bench)stmt;
+            out.append("{\"type\":\"Bench\"");
+            line(bench.keyword);
+            out.append(",\"iterations\":");
+            then(bench.iterations, ",\"expression\":", bench.expression, "}");
+        } else {
+            out.append("{\"type\":\"Expression\",\"expression\":");
+            then(((Stmt.Expression)stmt).expression, "}");
+        }
+    }
+
+    private void line(Token token) throws IOException {
+        if (!lines) return;
+        if (format == Format.JSON) {
+            out.append(",\"line\":").append(Integer.toString(token.line));
+        } else {
+            out.append('@').append(Integer.toString(token.line));
+        }
+    }
+
+    //a literal's value as JSON - numbers that JSON can't hold (only Infinity, from a
+    //literal too big for a double) are written as strings
+    private void value(Object value) throws IOException {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof Double && !((Double)value).isInfinite() && !((Double)value).isNaN()) {
+            out.append(value.toString());
+        } else if (value instanceof Boolean) {
+            out.append(value.toString());
+        } else {
+            string(value.toString());
+        }
+    }
+
+    private void string(String text) throws IOException {
+        string(out, text);
+    }
+
+    //'text' as a JSON string
+    static void string(Appendable out, String text) throws IOException {
+        out.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':  out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int)c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
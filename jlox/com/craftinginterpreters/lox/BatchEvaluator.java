@@ -0,0 +1,416 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/*
+ * Evaluates one expression over a whole batch of rows at once, using Lox as a
+ * formula language over columnar data
+ *
+ * Inputs are columns (double[], boolean[] or String[]) bound to names that the
+ * expression refers to as variables. Instead of running the interpreter once per
+ * row, each node is evaluated once for the whole batch, in a plain loop over
+ * primitive arrays with no boxing
+ *
+ * Every row gets exactly the value - or the RuntimeError - that the Interpreter
+ * would have produced for it. A null in a String[] column is nil
+ *
+ * Calls are the exception: a native like clock() gives a different answer every time,
+ * so a call is handed to an Interpreter once per row instead, with that row's inputs
+ */
+class BatchEvaluator implements Expr.Visitor<BatchEvaluator.Column> {
+
+    enum Kind { NUMBER, BOOLEAN, STRING, NIL }
+
+    //the result of evaluating a node for every row - only the array matching 'kind' is set
+    static class Column {
+        final Kind kind;
+        final int size;
+        final double[] numbers;
+        final boolean[] booleans;
+        final String[] strings;
+        //the error each row failed with, or null if no row failed
+        final RuntimeError[] errors;
+
+        private Column(Kind kind, int size, double[] numbers, boolean[] booleans,
+                String[] strings, RuntimeError[] errors) {
+            this.kind = kind;
+            this.size = size;
+            this.numbers = numbers;
+            this.booleans = booleans;
+            this.strings = strings;
+            this.errors = errors;
+        }
+
+        static Column of(double[] numbers, RuntimeError[] errors) {
+            return new Column(Kind.NUMBER, numbers.length, numbers, null, null, errors);
+        }
+
+        static Column of(boolean[] booleans, RuntimeError[] errors) {
+            return new Column(Kind.BOOLEAN, booleans.length, null, booleans, null, errors);
+        }
+
+        static Column of(String[] strings, RuntimeError[] errors) {
+            return new Column(Kind.STRING, strings.length, null, null, strings, errors);
+        }
+
+        static Column nil(int size, RuntimeError[] errors) {
+            return new Column(Kind.NIL, size, null, null, null, errors);
+        }
+
+        RuntimeError error(int row) {
+            return errors == null ? null : errors[row];
+        }
+
+        //the value for one row as the Interpreter would have returned it (null if the row failed)
+        Object get(int row) {
+            if (error(row) != null) return null;
+            switch (kind) {
+                case NUMBER:  return numbers[row];
+                case BOOLEAN: return booleans[row];
+                case STRING:  return strings[row];
+                default:      return null;
+            }
+        }
+    }
+
+    private final Map<String, Object> inputs;
+    private final int rows;
+    //evaluates calls row by row - made the first time the expression has one
+    private Interpreter interpreter = null;
+
+    BatchEvaluator(Map<String, Object> inputs, int rows) {
+        for (Map.Entry<String, Object> input : inputs.entrySet()) {
+            int length;
+            Object column = input.getValue();
+            if (column instanceof double[]) length = ((double[])column).length;
+            else if (column instanceof boolean[]) length = ((boolean[])column).length;
+            else if (column instanceof String[]) length = ((String[])column).length;
+            else throw new IllegalArgumentException(
+                "Input '" + input.getKey() + "' must be a double[], boolean[] or String[].");
+
+            if (length != rows) {
+                throw new IllegalArgumentException(
+                    "Input '" + input.getKey() + "' has " + length + " rows, expected " + rows + ".");
+            }
+        }
+        this.inputs = inputs;
+        this.rows = rows;
+    }
+
+    Column evaluate(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Column visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value instanceof Double) {
+            double[] numbers = new double[rows];
+            Arrays.fill(numbers, (double)value);
+            return Column.of(numbers, null);
+        }
+        if (value instanceof Boolean) {
+            boolean[] booleans = new boolean[rows];
+            Arrays.fill(booleans, (boolean)value);
+            return Column.of(booleans, null);
+        }
+        if (value instanceof String) {
+            String[] strings = new String[rows];
+            Arrays.fill(strings, value);
+            return Column.of(strings, null);
+        }
+        return Column.nil(rows, null);
+    }
+
+    @Override
+    public Column visitVariableExpr(Expr.Variable expr) {
+        Object column = inputs.get(expr.name.lexeme);
+        if (column instanceof double[]) return Column.of((double[])column, null);
+        if (column instanceof boolean[]) return Column.of((boolean[])column, null);
+        if (column instanceof String[]) return Column.of((String[])column, null);
+        return fail(null, new RuntimeError(expr.name, "Undefined variable '" + expr.name.lexeme + "'."));
+    }
+
+    //natives like clock() have side effects row by row, which a batch can't reproduce, so
+    //the whole call is evaluated for each row - tryEvaluate() hands back a row's error
+    //rather than throwing it, as in a batch a failing row is as ordinary as any other
+    @Override
+    public Column visitCallExpr(Expr.Call expr) {
+        Map<String, Object> row = new HashMap<>();
+        if (interpreter == null) interpreter = new Interpreter(null);
+        interpreter.setInputs(row);
+
+        Object[] values = new Object[rows];
+        RuntimeError[] errors = null;
+        for (int i = 0; i < rows; i++) {
+            for (Map.Entry<String, Object> input : inputs.entrySet()) {
+                row.put(input.getKey(), valueAt(input.getValue(), i));
+            }
+            Object value = interpreter.tryEvaluate(expr);
+            if (value instanceof RuntimeError) {
+                if (errors == null) errors = new RuntimeError[rows];
+                errors[i] = (RuntimeError)value;
+            } else {
+                values[i] = value;
+            }
+        }
+        return column(values, errors);
+    }
+
+    private static Object valueAt(Object column, int row) {
+        if (column instanceof double[]) return ((double[])column)[row];
+        if (column instanceof boolean[]) return ((boolean[])column)[row];
+        return ((String[])column)[row];
+    }
+
+    //the column for one value per row (failed rows are left out) - the values must all be
+    //of one kind, or nil alongside strings, which is all the natives can return
+    private Column column(Object[] values, RuntimeError[] errors) {
+        //null until a row succeeds
+        Kind kind = null;
+        for (int i = 0; i < rows; i++) {
+            if (errors != null && errors[i] != null) continue;
+            Kind next;
+            if (values[i] == null) next = Kind.NIL;
+            else if (values[i] instanceof Double) next = Kind.NUMBER;
+            else if (values[i] instanceof Boolean) next = Kind.BOOLEAN;
+            else if (values[i] instanceof String) next = Kind.STRING;
+            else throw new IllegalStateException("A call returned a value no column can hold.");
+
+            if (kind == null || kind == next) {
+                kind = next;
+            } else if ((kind == Kind.STRING || kind == Kind.NIL) && (next == Kind.STRING || next == Kind.NIL)) {
+                kind = Kind.STRING;
+            } else {
+                throw new IllegalStateException("Calls returned values of different types.");
+            }
+        }
+        if (kind == null) kind = Kind.NIL;
+
+        switch (kind) {
+            case NUMBER: {
+                double[] numbers = new double[rows];
+                for (int i = 0; i < rows; i++) {
+                    //(a null here is a failed row)
+                    if (values[i] != null) numbers[i] = (double)values[i];
+                }
+                return Column.of(numbers, errors);
+            }
+            case BOOLEAN: {
+                boolean[] booleans = new boolean[rows];
+                for (int i = 0; i < rows; i++) {
+                    if (values[i] != null) booleans[i] = (boolean)values[i];
+                }
+                return Column.of(booleans, errors);
+            }
+            case STRING: {
+                String[] strings = new String[rows];
+                for (int i = 0; i < rows; i++) strings[i] = (String)values[i];
+                return Column.of(strings, errors);
+            }
+            default:
+                return Column.nil(rows, errors);
+        }
+    }
+
+    @Override
+    public Column visitGroupingExpr(Expr.Grouping expr) {
+        return evaluate(expr.expression);
+    }
+
+    @Override
+    public Column visitUnaryExpr(Expr.Unary expr) {
+        Column right = evaluate(expr.right);
+
+        switch (expr.operator.type) {
+            case BANG: {
+                boolean[] result = new boolean[rows];
+                switch (right.kind) {
+                    case BOOLEAN:
+                        for (int i = 0; i < rows; i++) result[i] = !right.booleans[i];
+                        break;
+                    case STRING:
+                        for (int i = 0; i < rows; i++) result[i] = right.strings[i] == null;
+                        break;
+                    case NIL:
+                        Arrays.fill(result, true);
+                        break;
+                    default:
+                        //numbers are always truthy
+                        break;
+                }
+                return Column.of(result, right.errors);
+            }
+            case MINUS: {
+                if (right.kind != Kind.NUMBER) {
+                    return fail(right.errors, new RuntimeError(expr.operator, "Operand must be a number."));
+                }
+                double[] result = new double[rows];
+                for (int i = 0; i < rows; i++) result[i] = -right.numbers[i];
+                return Column.of(result, right.errors);
+            }
+        }
+
+        //should be unreachable
+        return Column.nil(rows, right.errors);
+    }
+
+    @Override
+    public Column visitBinaryExpr(Expr.Binary expr) {
+        Column left = evaluate(expr.left);
+        Column right = evaluate(expr.right);
+        //a row that failed on the left keeps that error, as the left operand is evaluated first
+        RuntimeError[] errors = merge(left.errors, right.errors);
+        boolean numbers = left.kind == Kind.NUMBER && right.kind == Kind.NUMBER;
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                if (!numbers) return fail(errors, new RuntimeError(operator, "Operands must be numbers."));
+                return Column.of(compare(operator.type, left.numbers, right.numbers), errors);
+            case MINUS:
+            case SLASH:
+            case STAR:
+                if (!numbers) return fail(errors, new RuntimeError(operator, "Operands must be numbers."));
+                return Column.of(arithmetic(operator.type, left.numbers, right.numbers), errors);
+            case PLUS:
+                if (numbers) {
+                    return Column.of(arithmetic(operator.type, left.numbers, right.numbers), errors);
+                }
+                if (left.kind == Kind.STRING && right.kind == Kind.STRING) {
+                    return concatenate(operator, left.strings, right.strings, errors);
+                }
+                return fail(errors, new RuntimeError(operator, "Operands must be two numbers or two strings."));
+            case EQUAL_EQUAL:
+                return Column.of(equal(left, right, false), errors);
+            case BANG_EQUAL:
+                return Column.of(equal(left, right, true), errors);
+        }
+
+        //should be unreachable
+        return Column.nil(rows, errors);
+    }
+
+    private static double[] arithmetic(TokenType operator, double[] a, double[] b) {
+        double[] result = new double[a.length];
+        switch (operator) {
+            case PLUS:
+                for (int i = 0; i < result.length; i++) result[i] = a[i] + b[i];
+                break;
+            case MINUS:
+                for (int i = 0; i < result.length; i++) result[i] = a[i] - b[i];
+                break;
+            case STAR:
+                for (int i = 0; i < result.length; i++) result[i] = a[i] * b[i];
+                break;
+            case SLASH:
+                for (int i = 0; i < result.length; i++) result[i] = a[i] / b[i];
+                break;
+        }
+        return result;
+    }
+
+    private static boolean[] compare(TokenType operator, double[] a, double[] b) {
+        boolean[] result = new boolean[a.length];
+        switch (operator) {
+            case GREATER:
+                for (int i = 0; i < result.length; i++) result[i] = a[i] > b[i];
+                break;
+            case GREATER_EQUAL:
+                for (int i = 0; i < result.length; i++) result[i] = a[i] >= b[i];
+                break;
+            case LESS:
+                for (int i = 0; i < result.length; i++) result[i] = a[i] < b[i];
+                break;
+            case LESS_EQUAL:
+                for (int i = 0; i < result.length; i++) result[i] = a[i] <= b[i];
+                break;
+        }
+        return result;
+    }
+
+    //string + string, where a nil row (null) is a type error for that row only
+    //the results aren't interned: a batch compares strings with equals(), never by reference,
+    //and a table lookup per row would cost more than the concatenation
+    private Column concatenate(Token operator, String[] a, String[] b, RuntimeError[] errors) {
+        String[] result = new String[rows];
+        RuntimeError[] failed = errors;
+        RuntimeError error = null;
+        for (int i = 0; i < rows; i++) {
+            if (a[i] != null && b[i] != null) {
+                result[i] = a[i] + b[i];
+            } else if (errors == null || errors[i] == null) {
+                if (error == null) {
+                    error = new RuntimeError(operator, "Operands must be two numbers or two strings.");
+                    //the operands' error arrays may be shared, so write into a copy
+                    failed = (errors == null) ? new RuntimeError[rows] : errors.clone();
+                }
+                failed[i] = error;
+            }
+        }
+        return Column.of(result, failed);
+    }
+
+    //mirrors Interpreter.isEqual for every row
+    private boolean[] equal(Column left, Column right, boolean negate) {
+        boolean[] result = new boolean[rows];
+
+        if (left.kind == right.kind) {
+            switch (left.kind) {
+                case NUMBER:
+                    //Double.equals semantics: NaN equals NaN, 0.0 doesn't equal -0.0
+                    for (int i = 0; i < rows; i++) {
+                        result[i] = Double.doubleToLongBits(left.numbers[i])
+                                 == Double.doubleToLongBits(right.numbers[i]);
+                    }
+                    break;
+                case BOOLEAN:
+                    for (int i = 0; i < rows; i++) result[i] = left.booleans[i] == right.booleans[i];
+                    break;
+                case STRING:
+                    for (int i = 0; i < rows; i++) result[i] = Objects.equals(left.strings[i], right.strings[i]);
+                    break;
+                case NIL:
+                    Arrays.fill(result, true);
+                    break;
+            }
+        } else if (left.kind == Kind.STRING && right.kind == Kind.NIL) {
+            for (int i = 0; i < rows; i++) result[i] = left.strings[i] == null;
+        } else if (left.kind == Kind.NIL && right.kind == Kind.STRING) {
+            for (int i = 0; i < rows; i++) result[i] = right.strings[i] == null;
+        }
+        //any other mix of types is never equal, which is what the array starts as
+
+        if (negate) {
+            for (int i = 0; i < rows; i++) result[i] = !result[i];
+        }
+        return result;
+    }
+
+    //earliest error for each row, left before right
+    private RuntimeError[] merge(RuntimeError[] left, RuntimeError[] right) {
+        if (left == null) return right;
+        if (right == null) return left;
+
+        RuntimeError[] merged = left.clone();
+        for (int i = 0; i < rows; i++) {
+            if (merged[i] == null) merged[i] = right[i];
+        }
+        return merged;
+    }
+
+    //every row that hasn't already failed fails with 'error'
+    private Column fail(RuntimeError[] errors, RuntimeError error) {
+        RuntimeError[] failed = (errors == null) ? new RuntimeError[rows] : errors.clone();
+        for (int i = 0; i < rows; i++) {
+            if (failed[i] == null) failed[i] = error;
+        }
+        return Column.nil(rows, failed);
+    }
+}
@@ -0,0 +1,142 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Limits on how much work one run of a script may do, for running untrusted code
+ *
+ * The interpreter calls step() for every expression node it evaluates. Normally that's
+ * just a counter decrement - the clock, the cancellation flag and the shared pool of
+ * steps are only looked at every CHECK_INTERVAL steps. A Budget is used by one thread
+ * at a time; a run that evaluates on several threads gives each one its own view from
+ * forThread(), and all the views draw on the same steps, deadline and cancel flag.
+ * cancel() may be called from anywhere
+ *
+ * Once a limit has run out, step() keeps returning false, and the interpreter throws
+ * the error from exceeded() against the nearest token it has (see Interpreter.evaluate())
+ */
+class Budget {
+
+    //how many steps to hand out between checks of the clock and the cancel flag
+    private static final int CHECK_INTERVAL = 1024;
+
+    //what every view of one run's budget shares
+    private static class Run {
+        //steps not yet handed out to any view's countdown
+        final AtomicLong remaining;
+        volatile boolean cancelled = false;
+
+        Run(long steps) {
+            remaining = new AtomicLong(steps);
+        }
+    }
+
+    private final Run run;
+    private final long maxSteps;
+    private final long timeoutMillis;
+    private final long deadline; //System.nanoTime() value, only meaningful if timeoutMillis > 0
+    final int maxStringLength;
+
+    //steps this view may take before its next checkpoint
+    private int countdown = 0;
+
+    private enum Reason { STEPS, DEADLINE, CANCELLED }
+
+    //the limit that has run out, once one has
+    private Reason exhausted = null;
+
+    //pass 0 for any limit that shouldn't apply
+    Budget(long maxSteps, long timeoutMillis, int maxStringLength) {
+        this.maxSteps = maxSteps > 0 ? maxSteps : Long.MAX_VALUE;
+        this.timeoutMillis = timeoutMillis;
+        this.deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        this.maxStringLength = maxStringLength > 0 ? maxStringLength : Integer.MAX_VALUE;
+        this.run = new Run(this.maxSteps);
+    }
+
+    private Budget(Budget other) {
+        this.run = other.run;
+        this.maxSteps = other.maxSteps;
+        this.timeoutMillis = other.timeoutMillis;
+        this.deadline = other.deadline;
+        this.maxStringLength = other.maxStringLength;
+    }
+
+    //build a budget from -Dlox.budget.steps, -Dlox.budget.timeoutMillis and
+    //-Dlox.budget.maxString, or return null if none of them are set
+    //the clock starts now, so call this just before running the script
+    static Budget fromSystemProperties() {
+        long steps = Long.getLong("lox.budget.steps", 0);
+        long timeout = Long.getLong("lox.budget.timeoutMillis", 0);
+        int maxString = Integer.getInteger("lox.budget.maxString", 0);
+        if (steps <= 0 && timeout <= 0 && maxString <= 0) return null;
+        return new Budget(steps, timeout, maxString);
+    }
+
+    //a view of the same budget for another thread evaluating part of the same run
+    //(which thread ends up taking the last step isn't deterministic)
+    Budget forThread() {
+        return new Budget(this);
+    }
+
+    //hand the steps this view took but didn't use back to the run, once it's done
+    void release() {
+        if (exhausted == null && countdown > 0) run.remaining.addAndGet(countdown);
+        countdown = 0;
+    }
+
+    //ask the script to stop - it will fail with BudgetError.Cancelled shortly after
+    void cancel() {
+        run.cancelled = true;
+    }
+
+    //charge one evaluation step - false once a limit has run out, and from then on
+    boolean step() {
+        return --countdown >= 0 || checkpoint();
+    }
+
+    //make sure a concatenation result of 'length' characters is allowed
+    void checkString(Token operator, long length) {
+        if (length > maxStringLength) {
+            throw new BudgetError.StringTooLong(operator, length, maxStringLength);
+        }
+    }
+
+    //the error for the limit that ran out, reported against 'token'
+    BudgetError exceeded(Token token) {
+        switch (exhausted) {
+            case CANCELLED: return new BudgetError.Cancelled(token);
+            case DEADLINE:  return new BudgetError.Deadline(token, timeoutMillis);
+            default:        return new BudgetError.StepLimit(token, maxSteps);
+        }
+    }
+
+    private boolean checkpoint() {
+        if (exhausted == null) {
+            if (run.cancelled) {
+                exhausted = Reason.CANCELLED;
+            } else if (timeoutMillis > 0 && System.nanoTime() - deadline > 0) {
+                exhausted = Reason.DEADLINE;
+            } else {
+                //take the next batch of steps - this step uses the first of them
+                int grant = take();
+                if (grant > 0) {
+                    countdown = grant - 1;
+                    return true;
+                }
+                exhausted = Reason.STEPS;
+            }
+        }
+        //come back here on every step from now on
+        countdown = 0;
+        return false;
+    }
+
+    private int take() {
+        while (true) {
+            long remaining = run.remaining.get();
+            int grant = (int)Math.min(CHECK_INTERVAL, remaining);
+            if (grant == 0 || run.remaining.compareAndSet(remaining, remaining - grant)) return grant;
+        }
+    }
+}
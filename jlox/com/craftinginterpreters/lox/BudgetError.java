@@ -0,0 +1,51 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * A script ran out of one of the resources its Budget allowed it
+ *
+ * These are RuntimeErrors, so they're reported (and set exit code 70) just like any
+ * other runtime error - the subclasses let a host tell which limit was hit
+ */
+class BudgetError extends RuntimeError {
+    private static final long serialVersionUID = 1L;
+
+    BudgetError(Token token, String message) {
+        super(token, message);
+    }
+
+    //evaluated more expression nodes than allowed
+    static class StepLimit extends BudgetError {
+        private static final long serialVersionUID = 1L;
+
+        StepLimit(Token token, long maxSteps) {
+            super(token, "Exceeded the limit of " + maxSteps + " evaluation steps.");
+        }
+    }
+
+    //still running when the wall-clock deadline passed
+    static class Deadline extends BudgetError {
+        private static final long serialVersionUID = 1L;
+
+        Deadline(Token token, long timeoutMillis) {
+            super(token, "Exceeded the time limit of " + timeoutMillis + "ms.");
+        }
+    }
+
+    //a string concatenation would have built a string longer than allowed
+    static class StringTooLong extends BudgetError {
+        private static final long serialVersionUID = 1L;
+
+        StringTooLong(Token token, long length, int maxLength) {
+            super(token, "String of " + length + " characters exceeds the limit of " + maxLength + ".");
+        }
+    }
+
+    //another thread called Budget.cancel()
+    static class Cancelled extends BudgetError {
+        private static final long serialVersionUID = 1L;
+
+        Cancelled(Token token) {
+            super(token, "Execution was cancelled.");
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * End-to-end check of LoxDaemon: starts a daemon in this process on a temporary socket
+ * and talks to it the way LoxClient does
+ *
+ *   - every reply must be well framed: STDOUT and STDERR frames that aren't empty, then
+ *     EXIT and the end of the stream - and its output, errors and exit code must be
+ *     exactly what the plain interpreter gives for the same script
+ *   - a request whose length is negative or too big must be refused with exit code 64
+ *   - many requests at once must each get their own output and exit code
+ *   - -Dlox.budget.* limits must stop each request separately
+ *   - a client that disconnects part way must have its script stopped, leaving the
+ *     scheduler's carrier threads idle
+ *
+ * Usage: jlox-daemon-check
+ * exits with code 1, saying what went wrong, on the first failure
+ */
+public class DaemonCheck {
+
+    //requests sent at the same time by checkConcurrent()
+    private static final int CONCURRENT = 64;
+    //carrier CPU time allowed while nothing should be running
+    private static final long IDLE_CPU_NANOS = 50_000_000;
+
+    //what the daemon sent back for one request
+    private static class Reply {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int exitCode;
+
+        String describe() {
+            return "exit " + exitCode + "\n-- stdout --\n" + text(out) + "-- stderr --\n" + text(err);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 0) {
+            System.out.println("Usage: jlox-daemon-check");
+            System.exit(64);
+        }
+
+        Path directory = Files.createTempDirectory("jlox-daemon-check");
+        Path socket = directory.resolve("lox.sock");
+        Thread daemon = Thread.ofPlatform().name("lox-daemon").daemon().start(() -> {
+            try {
+                LoxDaemon.main(new String[] { socket.toString() });
+            } catch (IOException error) {
+                throw new RuntimeException(error);
+            }
+        });
+        try {
+            awaitListening(socket, daemon);
+
+            List<String> scripts = new ArrayList<>();
+            scripts.add("");
+            scripts.add("print 1 + 2;");
+            scripts.add("print \"été\" + \"über\";\nprint \"中文\" == \"中文\";");
+            scripts.add("print 1;\nprint -\"a\";\nprint 2;");
+            scripts.add("print 1;\nprint (;\nprint 2;");
+            scripts.add("print 1 @ 2;");
+            scripts.add("print x;");
+            scripts.add("print clock(1);");
+            scripts.add("bench 0, 1;");
+            //big enough that its output goes out in many frames
+            scripts.add(GenerateCorpus.generate(20000, 8, 64, 0, 100, 1));
+            for (String script : scripts) {
+                checkReply(socket, script);
+            }
+
+            checkLengths(socket);
+            checkConcurrent(socket);
+            checkBudget(socket);
+            checkDisconnect(socket);
+        } finally {
+            Files.deleteIfExists(socket);
+            Files.deleteIfExists(directory);
+        }
+
+        System.out.println("daemon: framing, exit codes, request lengths, concurrent requests, budgets and disconnects all ok");
+        //the daemon itself never stops
+        System.exit(0);
+    }
+
+    private static void awaitListening(Path socket, Thread daemon) throws InterruptedException {
+        //the daemon warms up before it binds the socket
+        for (int i = 0; i < 600; i++) {
+            if (!daemon.isAlive()) fail("the daemon stopped before listening on " + socket);
+            try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+                channel.connect(UnixDomainSocketAddress.of(socket));
+                //connected and went away without a request - the daemon just drops it
+                return;
+            } catch (IOException error) {
+                Thread.sleep(100);
+            }
+        }
+        fail("the daemon didn't listen on " + socket + " within a minute");
+    }
+
+    private static void checkReply(Path socket, String source) throws IOException {
+        Reply actual = request(socket, source);
+        Reply expected = expected(source);
+        if (!actual.describe().equals(expected.describe())) {
+            fail("the daemon's reply differs from jlox's for:\n" + abbreviate(source)
+                + "\n== jlox ==\n" + expected.describe() + "== daemon ==\n" + actual.describe());
+        }
+    }
+
+    //a length no script can have is refused before the daemon allocates anything for it
+    private static void checkLengths(Path socket) throws IOException {
+        for (int length : new int[] { -1, Integer.MIN_VALUE, Integer.MAX_VALUE }) {
+            try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+                channel.connect(UnixDomainSocketAddress.of(socket));
+                DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+                out.writeInt(length);
+                out.flush();
+
+                Reply reply = reply(channel, "a request of " + length + " bytes");
+                if (reply.exitCode != 64 || reply.out.size() != 0 || !text(reply.err).contains("refused")) {
+                    fail("a request of " + length + " bytes wasn't refused:\n" + reply.describe());
+                }
+            }
+        }
+    }
+
+    //many requests at once, half of them failing - none may see another's output or exit code
+    private static void checkConcurrent(Path socket) throws Exception {
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<String> sources = new ArrayList<>();
+            List<Future<Reply>> replies = new ArrayList<>();
+            for (int i = 0; i < CONCURRENT; i++) {
+                StringBuilder source = new StringBuilder();
+                for (int line = 0; line < 200; line++) {
+                    source.append("print ").append(i).append(" * ").append(line).append(";\n");
+                }
+                if (i % 2 == 1) source.append("print ").append(i).append(" + nil;\n");
+                String body = source.toString();
+                sources.add(body);
+                replies.add(clients.submit(() -> request(socket, body)));
+            }
+
+            for (int i = 0; i < CONCURRENT; i++) {
+                String expected = expected(sources.get(i)).describe();
+                String actual = replies.get(i).get().describe();
+                if (!actual.equals(expected)) {
+                    fail("request " + i + " of " + CONCURRENT + " at once got the wrong reply:\n"
+                        + "== jlox ==\n" + expected + "== daemon ==\n" + actual);
+                }
+            }
+        }
+    }
+
+    //limits are read for every request, and count from when it arrives
+    private static void checkBudget(Path socket) throws IOException {
+        System.setProperty("lox.budget.steps", "1000");
+        try {
+            for (int i = 0; i < 2; i++) {
+                Reply reply = request(socket, "print 1;\nbench 1000000, 1 + 2;");
+                if (reply.exitCode != 70 || !text(reply.out).equals("1\n")
+                        || !text(reply.err).contains("Exceeded the limit of 1000 evaluation steps.")) {
+                    fail("a request didn't stop at its step limit:\n" + reply.describe());
+                }
+            }
+        } finally {
+            System.clearProperty("lox.budget.steps");
+        }
+    }
+
+    //a client that goes away mid-script must not leave the script running
+    private static void checkDisconnect(Path socket) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        channel.connect(UnixDomainSocketAddress.of(socket));
+        send(channel, "bench 1000000000000, 1 + 2;");
+
+        long busy = carrierCpu(threads, 500);
+        if (busy < IDLE_CPU_NANOS) {
+            fail("the long script didn't seem to start (carriers used " + busy / 1_000_000 + "ms)");
+        }
+
+        channel.close();
+        //time for the daemon to notice, and for the script to reach its next checkpoint
+        Thread.sleep(500);
+        long idle = carrierCpu(threads, 1000);
+        if (idle >= IDLE_CPU_NANOS) {
+            fail("the carriers kept working after the client went away (" + idle / 1_000_000 + "ms in a second)");
+        }
+    }
+
+    //CPU time the scheduler's carrier threads use over the next 'millis'
+    private static long carrierCpu(ThreadMXBean threads, long millis) throws InterruptedException {
+        List<Thread> carriers = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("lox-carrier-")) carriers.add(thread);
+        }
+        long before = 0;
+        for (Thread carrier : carriers) before += threads.getThreadCpuTime(carrier.threadId());
+        Thread.sleep(millis);
+        long after = 0;
+        for (Thread carrier : carriers) after += threads.getThreadCpuTime(carrier.threadId());
+        return after - before;
+    }
+
+    //one request as LoxClient makes it, checking the framing of everything that comes back
+    private static Reply request(Path socket, String source) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+            send(channel, source);
+            return reply(channel, abbreviate(source));
+        }
+    }
+
+    //read a whole reply, checking its framing - 'request' says what was sent, for failures
+    private static Reply reply(SocketChannel channel, String request) throws IOException {
+        Reply reply = new Reply();
+        DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+        while (true) {
+            byte stream;
+            try {
+                stream = in.readByte();
+            } catch (EOFException error) {
+                fail("the daemon hung up without an EXIT frame for:\n" + request);
+                return null;
+            }
+
+            int length = in.readInt();
+            if (stream == LoxDaemon.EXIT) {
+                reply.exitCode = length;
+                if (in.read() != -1) fail("the daemon sent more after EXIT for:\n" + request);
+                return reply;
+            }
+            if (stream != LoxDaemon.STDOUT && stream != LoxDaemon.STDERR) {
+                fail("the daemon sent a frame for unknown stream " + stream);
+            }
+            if (length <= 0) fail("the daemon sent a frame of " + length + " bytes");
+
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            (stream == LoxDaemon.STDOUT ? reply.out : reply.err).write(bytes);
+        }
+    }
+
+    private static void send(SocketChannel channel, String source) throws IOException {
+        byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+        DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.flush();
+    }
+
+    //what jlox prints for 'source', and the exit code it gives
+    private static Reply expected(String source) {
+        Reply reply = new Reply();
+        PrintStream out = new PrintStream(reply.out, true, StandardCharsets.UTF_8);
+        PrintStream err = new PrintStream(reply.err, true, StandardCharsets.UTF_8);
+        Session session = new Session(out, err);
+        Lox.setSession(session);
+        try {
+            List<Token> tokens = new Scanner(source).scanTokens();
+            List<Stmt> statements = null;
+            try {
+                statements = new Parser(tokens).parse();
+            } catch (Parser.ParseError error) {
+                //reported - hadError is set
+            }
+            if (!session.hadError) new Interpreter(null, out).interpret(statements);
+        } finally {
+            Lox.clearSession();
+        }
+        reply.exitCode = session.exitCode();
+        return reply;
+    }
+
+    private static String text(ByteArrayOutputStream bytes) {
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String abbreviate(String source) {
+        return source.length() > 500 ? source.substring(0, 500) + "..." : source;
+    }
+
+    private static void fail(String message) {
+        System.out.println("FAILED: " + message);
+        System.exit(1);
+    }
+}
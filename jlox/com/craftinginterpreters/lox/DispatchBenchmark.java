@@ -0,0 +1,207 @@
+package com.craftinginterpreters.lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Compares the two ways of walking a syntax tree: the visitor form (Expr with accept()
+ * and Expr.Visitor) against the records form (SealedExpr taken apart by a pattern-matching
+ * switch in SwitchInterpreter)
+ *
+ * Both sides recurse and hand every operator to the same Interpreter methods, so the only
+ * difference between them is how they get from a node to the code for its type. Interpreter
+ * itself, which walks the visitor form with an explicit stack, is timed as well for reference
+ *
+ * Only evaluation is timed - the scripts are scanned, parsed and converted up front - and
+ * each time is the best of several runs, in ns per node
+ *
+ * Usage: jlox-dispatch-bench
+ */
+public class DispatchBenchmark {
+
+    private static final int WARMUP_RUNS = 20;
+    private static final int MEASURED_RUNS = 10;
+
+    private static final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+    //results go here so the JIT can't throw the evaluation away
+    private static volatile Object sink;
+
+    //the visitor form of SwitchInterpreter.evaluate - a call to accept() and a call back per node
+    private static class VisitorEvaluator implements Expr.Visitor<Object> {
+        private final Interpreter semantics;
+
+        VisitorEvaluator(Interpreter semantics) {
+            this.semantics = semantics;
+        }
+
+        Object evaluate(Expr expr) {
+            return expr.accept(this);
+        }
+
+        @Override
+        public Object visitBinaryExpr(Expr.Binary expr) {
+            return semantics.binary(expr.operator, evaluate(expr.left), evaluate(expr.right));
+        }
+
+        @Override
+        public Object visitCallExpr(Expr.Call expr) {
+            Object callee = evaluate(expr.callee);
+            List<Object> arguments = new ArrayList<>(expr.arguments.size());
+            for (Expr argument : expr.arguments) {
+                arguments.add(evaluate(argument));
+            }
+            return semantics.call(expr.paren, callee, arguments);
+        }
+
+        @Override
+        public Object visitGroupingExpr(Expr.Grouping expr) {
+            return evaluate(expr.expression);
+        }
+
+        @Override
+        public Object visitLiteralExpr(Expr.Literal expr) {
+            return expr.value;
+        }
+
+        @Override
+        public Object visitUnaryExpr(Expr.Unary expr) {
+            return semantics.unary(expr.operator, evaluate(expr.right));
+        }
+
+        @Override
+        public Object visitVariableExpr(Expr.Variable expr) {
+            return semantics.variable(expr.name);
+        }
+    }
+
+    public static void main(String[] args) {
+        List<String> names = List.of("shallow", "deep", "mixed");
+        List<String> sources = List.of(
+            GenerateCorpus.generate(4000, 4, 0, 0, 0, 1),
+            GenerateCorpus.generate(100, 256, 0, 0, 0, 1),
+            mixed(4000, 1)
+        );
+
+        System.out.printf("%-10s %10s %12s %12s %12s %9s%n",
+            "script", "nodes", "visitor ns", "switch ns", "interp ns", "speedup");
+
+        for (int i = 0; i < names.size(); i++) {
+            run(names.get(i), sources.get(i));
+        }
+    }
+
+    private static void run(String name, String source) {
+        Session session = new Session(discard, discard);
+        Lox.setSession(session);
+        try {
+            List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+            if (session.hadError) {
+                throw new IllegalStateException("Benchmark script has a syntax error.");
+            }
+
+            List<Expr> expressions = new ArrayList<>();
+            for (Stmt statement : statements) {
+                expressions.add(((Stmt.Expression)statement).expression);
+            }
+            List<SealedExpr> records = new ArrayList<>();
+            for (Expr expression : expressions) {
+                records.add(SwitchInterpreter.convert(expression));
+            }
+            long nodes = 0;
+            for (Expr expression : expressions) {
+                nodes += size(expression);
+            }
+
+            Interpreter interpreter = new Interpreter(null, discard);
+            VisitorEvaluator visitor = new VisitorEvaluator(interpreter);
+            SwitchInterpreter switcher = new SwitchInterpreter(discard);
+
+            Runnable visitorRun = () -> {
+                for (Expr expression : expressions) sink = visitor.evaluate(expression);
+            };
+            Runnable switchRun = () -> {
+                for (SealedExpr expression : records) sink = switcher.evaluate(expression);
+            };
+            Runnable interpreterRun = () -> {
+                for (Expr expression : expressions) sink = interpreter.evaluate(expression);
+            };
+
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                visitorRun.run();
+                switchRun.run();
+                interpreterRun.run();
+            }
+
+            //runs of the three are interleaved, so GC and the JIT disturb each of them alike
+            long visitorBest = Long.MAX_VALUE;
+            long switchBest = Long.MAX_VALUE;
+            long interpreterBest = Long.MAX_VALUE;
+            for (int i = 0; i < MEASURED_RUNS; i++) {
+                visitorBest = Math.min(visitorBest, time(visitorRun));
+                switchBest = Math.min(switchBest, time(switchRun));
+                interpreterBest = Math.min(interpreterBest, time(interpreterRun));
+            }
+
+            System.out.printf("%-10s %10d %12.2f %12.2f %12.2f %8.2fx%n",
+                name, nodes,
+                visitorBest / (double)nodes,
+                switchBest / (double)nodes,
+                interpreterBest / (double)nodes,
+                visitorBest / (double)switchBest);
+        } finally {
+            Lox.clearSession();
+        }
+    }
+
+    private static long time(Runnable run) {
+        long start = System.nanoTime();
+        run.run();
+        return Math.max(System.nanoTime() - start, 1);
+    }
+
+    private static long size(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            return 1 + size(((Expr.Binary)expr).left) + size(((Expr.Binary)expr).right);
+        }
+        if (expr instanceof Expr.Unary) return 1 + size(((Expr.Unary)expr).right);
+        if (expr instanceof Expr.Grouping) return 1 + size(((Expr.Grouping)expr).expression);
+        if (expr instanceof Expr.Call) {
+            long size = 1 + size(((Expr.Call)expr).callee);
+            for (Expr argument : ((Expr.Call)expr).arguments) size += size(argument);
+            return size;
+        }
+        return 1;
+    }
+
+    //every kind of node, in an order that keeps each switch (and each accept() call site) busy
+    //with several types: comparisons, unary operators, booleans, nil, strings and clock() calls
+    private static String mixed(int statements, long seed) {
+        Random random = new Random(seed);
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < statements; i++) {
+            int a = 1 + random.nextInt(9);
+            int b = 1 + random.nextInt(9);
+            switch (random.nextInt(4)) {
+                case 0:
+                    source.append("!(").append(a).append(" < ").append(b).append(") == (-")
+                          .append(a).append(" * 3 >= ").append(b).append(" - 2);\n");
+                    break;
+                case 1:
+                    source.append("(\"a\" + \"b\" == \"ab\") != !nil;\n");
+                    break;
+                case 2:
+                    source.append("clock() - clock() <= ").append(a).append(" / ").append(b).append(";\n");
+                    break;
+                default:
+                    source.append("-(-").append(a).append(" + (").append(b).append(" * ")
+                          .append(a).append(")) > ").append(b).append(" == !true;\n");
+                    break;
+            }
+        }
+        return source.toString();
+    }
+}
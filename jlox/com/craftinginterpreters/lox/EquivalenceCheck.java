@@ -0,0 +1,541 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Differential check: runs random scripts through the plain serial interpreter and
+ * through every other way of running them, and fails if any of them prints something
+ * different - a different value, a different error, or an error on a different line
+ *
+ * The scripts mix every kind of operator and operand, so a good share of them stop
+ * with a runtime error, and some have a syntax error somewhere. Every few scripts one is
+ * a long left-leaning chain, to catch a pass that recurses once per node, or a large
+ * balanced tree, big enough for ParallelEvaluator to split. The records form is walked
+ * recursively on purpose (see SwitchInterpreter), so it sits out the long chains
+ *
+ * Then every mode runs a script of nothing but literals under a step limit, which must
+ * stop it with the same error, and BatchEvaluator evaluates random formulas over random
+ * input columns, which must give every row the value or error the Interpreter gives it.
+ * Last, the ways of getting errors without throwing them - tryEvaluate() and
+ * parse(errors) - must find the same first error, and trace the same events, as the
+ * usual throwing and reporting ones
+ *
+ * Usage: jlox-equivalence-check [scripts] [seed]
+ * exits with code 1, printing the script, on the first mismatch
+ */
+public class EquivalenceCheck {
+
+    //a chain this long overflows the default Java stack if walked recursively
+    private static final int DEEP_NODES = 200_000;
+    //and calls nested this deep do too
+    private static final int DEEP_CALLS = 20_000;
+    //a balanced tree this deep is over ParallelEvaluator.THRESHOLD
+    private static final int BALANCED_DEPTH = 14;
+    //step limit for checkBudgets()
+    private static final int BUDGET_STEPS = 5000;
+    //expressions and scripts for checkErrorModes()
+    private static final int ERROR_CASES = 2000;
+    //formulas for checkBatches(), and the rows each is evaluated over
+    private static final int BATCH_FORMULAS = 500;
+    private static final int BATCH_ROWS = 64;
+    //the input columns' names: numbers, booleans and strings (with some nils)
+    private static final String[] INPUTS = { "x", "b", "s" };
+    //nodes per slice in the sliced mode - small, so most statements stop several times
+    private static final int SLICE_STEPS = 7;
+    //small enough that the cache mode keeps evicting
+    private static final long CACHE_WEIGHT = 32;
+
+    private static final String[] OPERATORS = {
+        "+", "-", "*", "/", "==", "!=", "<", "<=", ">", ">="
+    };
+    private static final String[] ATOMS = {
+        "1", "2", "0", "0.5", "\"a\"", "\"b\"", "\"\"", "true", "false", "nil",
+        "clock", "clock(1)", "\"a\"()"
+    };
+    //without natives or calls, which the result cache never looks up
+    private static final String[] PURE_ATOMS = Arrays.copyOf(ATOMS, 10);
+    //the pure atoms and the inputs, about half and half, and calls - which a batch makes
+    //row by row - that fail or give the same answer every time (a bare native can't be
+    //held in a column, so there's none of those)
+    private static final String[] FORMULA_ATOMS = {
+        "1", "2", "0", "0.5", "\"a\"", "\"b\"", "\"\"", "true", "false", "nil",
+        "x", "x", "x", "b", "b", "b", "s", "s", "s",
+        "(clock() >= 0)", "clock(1)", "\"a\"()", "x()", "s(x)"
+    };
+
+    //one way of running a script - scanning, parsing and reporting are up to the mode
+    private interface Mode {
+        //'budget' is null for no limits
+        void run(String source, Budget budget);
+    }
+
+    private static final Map<String, Mode> modes = new LinkedHashMap<>();
+
+    //modes that recurse, so they're left out of the deep scripts, and that have no budget
+    private static final Set<String> recursive = Set.of("records");
+
+    //modes that run each statement once, at most, like the serial interpreter - so they
+    //must count the same statements executed and programs interpreted in the metrics
+    //(the pipeline may run statements before a later syntax error stops it, and cache runs twice)
+    private static final Set<String> counted = Set.of("hashcons", "parallel", "sliced", "records", "concurrent");
+
+    private static final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+    static {
+        modes.put("hashcons", (source, budget) -> {
+            List<Stmt> statements = parse(source);
+            if (statements == null) return;
+            HashConser conser = new HashConser();
+            List<Stmt> shared = conser.share(statements);
+            //sharing nodes mustn't change what the tree says - a difference shows in the output
+            for (int i = 0; i < statements.size(); i++) {
+                Stmt before = statements.get(i);
+                Stmt after = shared.get(i);
+                if (!Stmt.sameShape(before, after) || Stmt.shapeHash(before) != Stmt.shapeHash(after)) {
+                    Lox.session().out.println("hash-consing changed statement " + (i + 1));
+                }
+            }
+            Interpreter interpreter = new Interpreter(null, Lox.session().out);
+            interpreter.setBudget(budget);
+            interpreter.interpret(shared, conser.shared());
+        });
+        modes.put("pipeline", (source, budget) -> Pipeline.run(source, null, false, budget));
+        modes.put("parallel", (source, budget) -> {
+            List<Stmt> statements = parse(source);
+            if (statements == null) return;
+            ParallelEvaluator parallel = new ParallelEvaluator(ForkJoinPool.commonPool());
+            parallel.prepare(statements);
+            Interpreter interpreter = new Interpreter(null, Lox.session().out, parallel);
+            interpreter.setBudget(budget);
+            interpreter.interpret(statements);
+        });
+        //every script runs twice against the same cache, the second time from a fresh parse,
+        //so its subtrees are answered (or fail) from what the first run left behind
+        ResultCache cache = new ResultCache(CACHE_WEIGHT);
+        modes.put("cache", (source, budget) -> {
+            Session session = Lox.session();
+            Lox.setSession(new Session(discard, discard));
+            try {
+                List<Stmt> statements = parse(source);
+                if (statements != null) {
+                    Interpreter interpreter = new Interpreter(null, discard);
+                    interpreter.setCache(cache);
+                    interpreter.interpret(statements);
+                }
+            } finally {
+                Lox.setSession(session);
+            }
+
+            List<Stmt> statements = parse(source);
+            if (statements == null) return;
+            Interpreter interpreter = new Interpreter(null, session.out);
+            interpreter.setCache(cache);
+            interpreter.setBudget(budget);
+            interpreter.interpret(statements);
+        });
+        //a few nodes at a time, as the daemon's Scheduler runs a script, with shared
+        //subexpressions and a ParallelEvaluator (which a slice never splits with)
+        modes.put("sliced", (source, budget) -> {
+            List<Stmt> statements = parse(source);
+            if (statements == null) return;
+            HashConser conser = new HashConser();
+            statements = conser.share(statements);
+            ParallelEvaluator parallel = new ParallelEvaluator(ForkJoinPool.commonPool());
+            parallel.prepare(statements);
+            Interpreter interpreter = new Interpreter(null, Lox.session().out, parallel);
+            interpreter.setShared(conser.shared());
+            interpreter.setBudget(budget);
+            interpreter.start(statements);
+            while (!interpreter.resume(SLICE_STEPS)) {}
+        });
+        modes.put("records", (source, budget) -> {
+            List<Stmt> statements = parse(source);
+            if (statements == null) return;
+            new SwitchInterpreter(Lox.session().out).interpret(SwitchInterpreter.convert(statements));
+        });
+        modes.put("concurrent", (source, budget) -> {
+            List<Stmt> statements = parse(source);
+            if (statements == null) return;
+            HashConser conser = new HashConser();
+            statements = conser.share(statements);
+            ParallelEvaluator parallel = new ParallelEvaluator(ForkJoinPool.commonPool());
+            parallel.prepare(statements);
+            new ParallelStatements(ForkJoinPool.commonPool(), Lox.session().out, parallel,
+                conser.shared(), budget).interpret(statements);
+        });
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 2) {
+            System.out.println("Usage: jlox-equivalence-check [scripts] [seed]");
+            System.exit(64);
+        }
+        int scripts = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+        Random random = new Random(seed);
+        for (int i = 0; i < scripts; i++) {
+            String source;
+            boolean deep = i % 100 == 99;
+            if (deep) source = deepScript(random);
+            else if (i % 100 == 49) source = balancedScript(random);
+            else source = script(random);
+            String expected = capture(EquivalenceCheck::serial, source, null);
+
+            for (Map.Entry<String, Mode> mode : modes.entrySet()) {
+                if (deep && recursive.contains(mode.getKey())) continue;
+                String actual = capture(mode.getValue(), source, null);
+                if (!actual.equals(expected)) {
+                    System.out.println("Script " + i + " differs under " + mode.getKey() + ":");
+                    System.out.println(source.length() > 2000 ? source.substring(0, 2000) + "..." : source);
+                    System.out.println("-- serial --");
+                    System.out.print(expected);
+                    System.out.println("-- " + mode.getKey() + " --");
+                    System.out.print(actual);
+                    System.exit(1);
+                }
+            }
+            if (i % 4 == 0) checkCounts(source, deep);
+        }
+        checkBudgets();
+        checkSlicedBudget();
+        checkBatches(random);
+        checkErrorModes(random);
+        System.out.println(scripts + " scripts, " + modes.size() + " modes: no differences");
+    }
+
+    private static void checkCounts(String source, boolean deep) {
+        String expected = counts(EquivalenceCheck::serial, source);
+        for (String mode : counted) {
+            if (deep && recursive.contains(mode)) continue;
+            String actual = counts(modes.get(mode), source);
+            if (!actual.equals(expected)) {
+                System.out.println("The metrics differ under " + mode + " (" + actual
+                    + ", serially " + expected + ") for:");
+                System.out.println(source.length() > 2000 ? source.substring(0, 2000) + "..." : source);
+                System.exit(1);
+            }
+        }
+    }
+
+    //what running 'source' adds to the metrics of what was executed
+    private static String counts(Mode mode, String source) {
+        long statements = Metrics.global.statementsExecuted.sum();
+        long programs = Metrics.global.interpretLatency.count();
+        Lox.setSession(new Session(discard, discard));
+        try {
+            mode.run(source, null);
+        } finally {
+            Lox.clearSession();
+        }
+        return (Metrics.global.statementsExecuted.sum() - statements) + " statements executed, "
+            + (Metrics.global.interpretLatency.count() - programs) + " programs interpreted";
+    }
+
+    //a limit that runs out on a literal, with no operator around it, must still stop the script
+    private static void checkBudgets() {
+        StringBuilder literals = new StringBuilder();
+        for (int i = 0; i < BUDGET_STEPS * 2; i++) {
+            literals.append("print ").append(i % 2 == 0 ? "1" : "(\"a\")").append(";\n");
+        }
+        String source = literals.toString();
+        String error = "Exceeded the limit of " + BUDGET_STEPS + " evaluation steps.";
+
+        Map<String, Mode> all = new LinkedHashMap<>();
+        all.put("serial", EquivalenceCheck::serial);
+        all.putAll(modes);
+        all.keySet().removeAll(recursive);
+        for (Map.Entry<String, Mode> mode : all.entrySet()) {
+            String output = capture(mode.getValue(), source, new Budget(BUDGET_STEPS, 0, 0));
+            if (!output.contains(error) || !output.endsWith("exit 70\n")) {
+                System.out.println(mode.getKey() + " didn't stop at " + BUDGET_STEPS + " steps:");
+                System.out.println(output.substring(Math.max(0, output.length() - 500)));
+                System.exit(1);
+            }
+        }
+    }
+
+    //a shared subexpression is evaluated once per statement, however many slices the
+    //statement takes - so slicing mustn't move the point where a limit runs out
+    private static void checkSlicedBudget() {
+        StringBuilder sum = new StringBuilder("0");
+        for (int i = 1; i <= 20; i++) sum.append(" + ").append(i);
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < BUDGET_STEPS; i++) {
+            source.append("print (").append(sum).append(") * (").append(sum).append(");\n");
+        }
+
+        String expected = capture(modes.get("hashcons"), source.toString(), new Budget(BUDGET_STEPS, 0, 0));
+        String actual = capture(modes.get("sliced"), source.toString(), new Budget(BUDGET_STEPS, 0, 0));
+        if (!actual.equals(expected)) {
+            System.out.println("Slicing changed where " + BUDGET_STEPS + " steps ran out:");
+            System.out.println("-- hashcons --");
+            System.out.println(expected.substring(Math.max(0, expected.length() - 300)));
+            System.out.println("-- sliced --");
+            System.out.println(actual.substring(Math.max(0, actual.length() - 300)));
+            System.exit(1);
+        }
+    }
+
+    private static void checkBatches(Random random) {
+        Map<String, Object> columns = new LinkedHashMap<>();
+        for (int i = 0; i < BATCH_FORMULAS; i++) {
+            double[] x = new double[BATCH_ROWS];
+            boolean[] b = new boolean[BATCH_ROWS];
+            String[] s = new String[BATCH_ROWS];
+            for (int row = 0; row < BATCH_ROWS; row++) {
+                x[row] = random.nextInt(5) - 2;
+                b[row] = random.nextBoolean();
+                s[row] = random.nextInt(4) == 0 ? null : String.valueOf((char)('a' + random.nextInt(3)));
+            }
+            columns.put("x", x);
+            columns.put("b", b);
+            columns.put("s", s);
+
+            StringBuilder formula = new StringBuilder();
+            expression(formula, random, 1 + random.nextInt(6), FORMULA_ATOMS);
+            List<Token> tokens = new Scanner(formula.toString() + ";").scanTokens();
+            Stmt statement = new Parser(tokens, Set.of(INPUTS)).parse().get(0);
+            Expr expr = ((Stmt.Expression)statement).expression;
+
+            BatchEvaluator.Column column = new BatchEvaluator(columns, BATCH_ROWS).evaluate(expr);
+            for (int row = 0; row < BATCH_ROWS; row++) {
+                Interpreter interpreter = new Interpreter(null, System.out);
+                interpreter.define("x", x[row]);
+                interpreter.define("b", b[row]);
+                interpreter.define("s", s[row]);
+                String expected;
+                try {
+                    expected = describe(interpreter.evaluate(expr));
+                } catch (RuntimeError error) {
+                    expected = describe(error);
+                }
+
+                RuntimeError error = column.error(row);
+                String actual = (error != null) ? describe(error) : describe(column.get(row));
+                if (!actual.equals(expected)) {
+                    System.out.println("Row " + row + " of " + formula + " differs in a batch"
+                        + " (x = " + x[row] + ", b = " + b[row] + ", s = " + s[row] + "):");
+                    System.out.println("interpreter: " + expected);
+                    System.out.println("batch:       " + actual);
+                    System.exit(1);
+                }
+            }
+        }
+    }
+
+    private static void checkErrorModes(Random random) {
+        for (int i = 0; i < ERROR_CASES; i++) {
+            StringBuilder source = new StringBuilder();
+            expression(source, random, random.nextInt(8), ATOMS);
+            Expr expr = ((Stmt.Expression)parse(source + ";").get(0)).expression;
+
+            //thrown, and traced as report() would trace it
+            Tracer thrownTrace = new Tracer(64);
+            String thrown;
+            try {
+                thrown = describe(new Interpreter(thrownTrace, discard).evaluate(expr));
+            } catch (RuntimeError error) {
+                thrownTrace.error(error);
+                thrown = describe(error);
+            }
+
+            Tracer returnedTrace = new Tracer(64);
+            String returned = describe(new Interpreter(returnedTrace, discard).tryEvaluate(expr));
+            if (!returned.equals(thrown) || !dump(returnedTrace).equals(dump(thrownTrace))) {
+                System.out.println(source + " gives a different result from tryEvaluate():");
+                System.out.println("evaluate:    " + thrown);
+                System.out.print(dump(thrownTrace));
+                System.out.println("tryEvaluate: " + returned);
+                System.out.print(dump(returnedTrace));
+                System.exit(1);
+            }
+        }
+
+        for (int i = 0; i < ERROR_CASES; i++) {
+            String source = script(random);
+            //only syntax errors - scan errors are the same whichever way the parser goes
+            Session scanning = new Session(discard, discard);
+            Lox.setSession(scanning);
+            List<Token> tokens = new Scanner(source).scanTokens();
+            Lox.clearSession();
+            if (scanning.hadError) continue;
+            List<Parser.ParseError> errors = new ArrayList<>();
+            new Parser(tokens).parse(errors);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PrintStream printer = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+            Lox.setSession(new Session(discard, printer));
+            try {
+                new Parser(tokens).parse();
+            } catch (Parser.ParseError error) {
+                //reported below
+            } finally {
+                Lox.clearSession();
+            }
+            String reported = bytes.toString(StandardCharsets.UTF_8);
+
+            String collected = errors.isEmpty() ? ""
+                : "[line " + errors.get(0).token.line + "] " + errors.get(0).getMessage();
+            boolean same = errors.isEmpty() ? reported.isEmpty()
+                : reported.startsWith("[line " + errors.get(0).token.line + "] Error")
+                    && reported.trim().endsWith(": " + errors.get(0).getMessage());
+            if (!same) {
+                System.out.println("parse(errors) found a different first error in:");
+                System.out.println(source);
+                System.out.println("reported:  " + reported.trim());
+                System.out.println("collected: " + collected);
+                System.exit(1);
+            }
+        }
+    }
+
+    private static String dump(Tracer tracer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        tracer.dump(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String describe(Object value) {
+        if (value instanceof RuntimeError) {
+            RuntimeError error = (RuntimeError)value;
+            return error.getMessage() + " [line " + error.token.line + "]";
+        }
+        return Objects.toString(value) + (value == null ? "" : " (" + value.getClass().getSimpleName() + ")");
+    }
+
+    private static void serial(String source, Budget budget) {
+        List<Stmt> statements = parse(source);
+        if (statements == null) return;
+        Interpreter interpreter = new Interpreter(null, Lox.session().out);
+        interpreter.setBudget(budget);
+        interpreter.interpret(statements);
+    }
+
+    //the statements, or null (with the errors reported) if the script doesn't parse
+    static List<Stmt> parse(String source) {
+        List<Token> tokens = new Scanner(source).scanTokens();
+        try {
+            List<Stmt> statements = new Parser(tokens).parse();
+            return Lox.session().hadError ? null : statements;
+        } catch (Parser.ParseError error) {
+            //parse() gives up at the first error, once it has reported it
+            return null;
+        }
+    }
+
+    //everything one run prints, output and errors interleaved as they happened
+    private static String capture(Mode mode, String source, Budget budget) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream printer = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+        Session session = new Session(printer, printer);
+        Lox.setSession(session);
+        try {
+            mode.run(source, budget);
+        } finally {
+            Lox.clearSession();
+        }
+        printer.println("exit " + session.exitCode());
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String script(Random random) {
+        StringBuilder source = new StringBuilder();
+        int statements = 1 + random.nextInt(6);
+        for (int i = 0; i < statements; i++) {
+            if (random.nextInt(4) != 0) source.append("print ");
+            if (random.nextInt(4) != 0) {
+                expression(source, random, random.nextInt(8), ATOMS);
+            } else {
+                //a chain of pure expressions, big enough for the result cache to look up
+                int terms = 4 + random.nextInt(12);
+                for (int term = 0; term < terms; term++) {
+                    if (term > 0) source.append(' ').append(OPERATORS[random.nextInt(OPERATORS.length)]).append(' ');
+                    expression(source, random, random.nextInt(8), PURE_ATOMS);
+                }
+            }
+            source.append(";\n");
+        }
+        if (random.nextInt(10) == 0) {
+            //break it: a stray character the scanner rejects, or a token the parser does
+            int at = random.nextInt(source.length() + 1);
+            source.insert(at, random.nextBoolean() ? " @ " : " ) ");
+        }
+        return source.toString();
+    }
+
+    //a random expression over 'atoms'
+    private static void expression(StringBuilder source, Random random, int depth, String[] atoms) {
+        switch (depth <= 0 ? 0 : random.nextInt(4)) {
+            case 0:
+                source.append(atoms[random.nextInt(atoms.length)]);
+                break;
+            case 1:
+                source.append(random.nextBoolean() ? "!" : "-");
+                expression(source, random, depth - 1, atoms);
+                break;
+            case 2:
+                source.append('(');
+                expression(source, random, depth - 1, atoms);
+                source.append(')');
+                break;
+            default:
+                expression(source, random, depth - 1, atoms);
+                source.append(' ').append(OPERATORS[random.nextInt(OPERATORS.length)]).append(' ');
+                expression(source, random, depth - 1, atoms);
+                break;
+        }
+    }
+
+    //a few large balanced trees of arithmetic, some of which fail somewhere inside
+    private static String balancedScript(Random random) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 3; i++) {
+            source.append("print ");
+            balanced(source, random, BALANCED_DEPTH);
+            source.append(";\n");
+        }
+        return source.toString();
+    }
+
+    private static void balanced(StringBuilder source, Random random, int depth) {
+        if (depth == 0) {
+            source.append(random.nextInt(20000) == 0 ? "nil" : String.valueOf(random.nextInt(10)));
+            return;
+        }
+        source.append('(');
+        balanced(source, random, depth - 1);
+        source.append(random.nextBoolean() ? " + " : " - ");
+        balanced(source, random, depth - 1);
+        source.append(")\n");
+    }
+
+    //one long chain of additions, which fails near the end if 'random' says so
+    private static String deepScript(Random random) {
+        StringBuilder source = new StringBuilder("print 1");
+        int failAt = random.nextBoolean() ? DEEP_NODES - 10 : -1;
+        for (int i = 0; i < DEEP_NODES; i++) {
+            source.append(i == failAt ? " + nil" : " + 1");
+            if (i % 20 == 19) source.append('\n');
+        }
+        source.append(";\n");
+
+        //clock() takes no arguments, so this fails at the innermost call but one
+        source.append("print ");
+        for (int i = 0; i < DEEP_CALLS; i++) source.append("clock(").append(i % 3 == 0 ? "1, " : "");
+        for (int i = 0; i < DEEP_CALLS; i++) source.append(')');
+        return source.append(";\n").toString();
+    }
+}
@@ -1,12 +1,64 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
 abstract class Expr {
     interface Visitor<R> {
         R visitBinaryExpr(Binary expr);
+        R visitCallExpr(Call expr);
         R visitGroupingExpr(Grouping expr);
         R visitLiteralExpr(Literal expr);
         R visitUnaryExpr(Unary expr);
+        R visitVariableExpr(Variable expr);
+    }
+
+    //structural equality - the same kinds of node with the same operators, names and
+    //values, on any lines (equals() is identity, so copies of a node stay apart as keys)
+    static boolean sameShape(Expr a, Expr b) {
+      //pairs of nodes still to compare - an explicit stack, so depth doesn't matter
+      List<Expr> pending = new ArrayList<>();
+      pending.add(a);
+      pending.add(b);
+      while (!pending.isEmpty()) {
+        Expr right = pending.remove(pending.size() - 1);
+        Expr left = pending.remove(pending.size() - 1);
+        if (left == right) continue;
+        if (left == null || right == null || left.getClass() != right.getClass()) return false;
+        if (!left.sameFields(right, pending)) return false;
+      }
+      return true;
+    }
+
+    //structural hash - equal for any two trees with the same shape
+    static int shapeHash(Expr node) {
+      List<Expr> pending = new ArrayList<>();
+      pending.add(node);
+      int hash = 1;
+      while (!pending.isEmpty()) {
+        Expr next = pending.remove(pending.size() - 1);
+        hash = 31 * hash + (next == null ? 0 : next.fieldHash(pending));
+      }
+      return hash;
     }
+
+    //compare this node's own fields with those of 'other', a node of the same class,
+    //adding each pair of child nodes to 'pending' to be compared after
+    abstract boolean sameFields(Expr other, List<Expr> pending);
+
+    //hash this node's own fields, adding its child nodes to 'pending' to be hashed after
+    abstract int fieldHash(List<Expr> pending);
+
+    //tokens match on what they say, not where they are
+    private static boolean sameToken(Token a, Token b) {
+      return a.type == b.type && a.lexeme.equals(b.lexeme) && Objects.equals(a.literal, b.literal);
+    }
+
+    private static int tokenHash(Token token) {
+      return Objects.hash(token.type, token.lexeme, token.literal);
+    }
+
   static class Binary extends Expr{
     Binary(Expr left, Token operator, Expr right) {
       this.left = left;
@@ -18,10 +70,67 @@ abstract class Expr {
     <R> R accept(Visitor<R> visitor) {
         return visitor.visitBinaryExpr(this);
     }
+
+    @Override
+    boolean sameFields(Expr node, List<Expr> pending) {
+      Binary other = (Binary)node;
+      pending.add(left);
+      pending.add(other.left);
+      pending.add(right);
+      pending.add(other.right);
+      return sameToken(operator, other.operator);
+    }
+
+    @Override
+    int fieldHash(List<Expr> pending) {
+      int hash = 1989867553;
+      pending.add(left);
+      hash = 31 * hash + tokenHash(operator);
+      pending.add(right);
+      return hash;
+    }
     final Expr left;
     final Token operator;
     final Expr right;
   }
+  static class Call extends Expr{
+    Call(Expr callee, Token paren, List<Expr> arguments) {
+      this.callee = callee;
+      this.paren = paren;
+      this.arguments = arguments;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+        return visitor.visitCallExpr(this);
+    }
+
+    @Override
+    boolean sameFields(Expr node, List<Expr> pending) {
+      Call other = (Call)node;
+      pending.add(callee);
+      pending.add(other.callee);
+      for (int i = 0; i < Math.min(arguments.size(), other.arguments.size()); i++) {
+        pending.add(arguments.get(i));
+        pending.add(other.arguments.get(i));
+      }
+      return sameToken(paren, other.paren)
+          && arguments.size() == other.arguments.size();
+    }
+
+    @Override
+    int fieldHash(List<Expr> pending) {
+      int hash = 2092670;
+      pending.add(callee);
+      hash = 31 * hash + tokenHash(paren);
+      hash = 31 * hash + arguments.size();
+      pending.addAll(arguments);
+      return hash;
+    }
+    final Expr callee;
+    final Token paren;
+    final List<Expr> arguments;
+  }
   static class Grouping extends Expr{
     Grouping(Expr expression) {
       this.expression = expression;
@@ -31,6 +140,21 @@ abstract class Expr {
     <R> R accept(Visitor<R> visitor) {
         return visitor.visitGroupingExpr(this);
     }
+
+    @Override
+    boolean sameFields(Expr node, List<Expr> pending) {
+      Grouping other = (Grouping)node;
+      pending.add(expression);
+      pending.add(other.expression);
+      return true;
+    }
+
+    @Override
+    int fieldHash(List<Expr> pending) {
+      int hash = 571015459;
+      pending.add(expression);
+      return hash;
+    }
     final Expr expression;
   }
   static class Literal extends Expr{
@@ -42,6 +166,19 @@ abstract class Expr {
     <R> R accept(Visitor<R> visitor) {
         return visitor.visitLiteralExpr(this);
     }
+
+    @Override
+    boolean sameFields(Expr node, List<Expr> pending) {
+      Literal other = (Literal)node;
+      return Objects.equals(value, other.value);
+    }
+
+    @Override
+    int fieldHash(List<Expr> pending) {
+      int hash = 1847113871;
+      hash = 31 * hash + Objects.hashCode(value);
+      return hash;
+    }
     final Object value;
   }
   static class Unary extends Expr{
@@ -54,9 +191,49 @@ abstract class Expr {
     <R> R accept(Visitor<R> visitor) {
         return visitor.visitUnaryExpr(this);
     }
+
+    @Override
+    boolean sameFields(Expr node, List<Expr> pending) {
+      Unary other = (Unary)node;
+      pending.add(right);
+      pending.add(other.right);
+      return sameToken(operator, other.operator);
+    }
+
+    @Override
+    int fieldHash(List<Expr> pending) {
+      int hash = 81873167;
+      hash = 31 * hash + tokenHash(operator);
+      pending.add(right);
+      return hash;
+    }
     final Token operator;
     final Expr right;
   }
+  static class Variable extends Expr{
+    Variable(Token name) {
+      this.name = name;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+        return visitor.visitVariableExpr(this);
+    }
+
+    @Override
+    boolean sameFields(Expr node, List<Expr> pending) {
+      Variable other = (Variable)node;
+      return sameToken(name, other.name);
+    }
+
+    @Override
+    int fieldHash(List<Expr> pending) {
+      int hash = -1184942436;
+      hash = 31 * hash + tokenHash(name);
+      return hash;
+    }
+    final Token name;
+  }
 
     abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,117 @@
+package com.craftinginterpreters.lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Checks that short scripts stay fast while heavy ones are running in the same process
+ *
+ * Starts some number of heavy scripts that never finish on their own, then submits a
+ * steady stream of short scripts and measures how long each takes from submission to
+ * completion. Every script gets its own virtual thread, as in LoxDaemon. Run there
+ * directly, the heavy scripts hold on to the JDK's carrier threads and the short ones
+ * queue behind them; handed to a Scheduler they take turns, and short latency should
+ * barely move as heavy scripts are added
+ *
+ * Usage: jlox-fairness-bench
+ */
+public class FairnessBenchmark {
+
+    private static final int SHORT_SCRIPTS = 2000;
+    private static final long SUBMIT_INTERVAL_NANOS = 250_000;
+
+    private static final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+    public static void main(String[] args) throws InterruptedException {
+        List<Stmt> heavy = parse(GenerateCorpus.generate(20000, 8, 0, 0, 0, 1));
+        List<Stmt> light = parse(GenerateCorpus.generate(20, 8, 0, 0, 0, 2));
+        int cores = Runtime.getRuntime().availableProcessors();
+        Scheduler scheduler = Scheduler.fromSystemProperties();
+
+        //get everything compiled before the first measurement
+        run(heavy, light, cores, null);
+        run(heavy, light, cores, scheduler);
+
+        System.out.printf("%-12s %7s %12s %12s %12s%n", "mode", "heavy", "p50 us", "p99 us", "max us");
+        for (int heavies : new int[] { 0, cores, 4 * cores, 16 * cores }) {
+            report("unscheduled", heavies, run(heavy, light, heavies, null));
+            report("scheduled", heavies, run(heavy, light, heavies, scheduler));
+        }
+    }
+
+    private static void report(String mode, int heavies, long[] latencies) {
+        Arrays.sort(latencies);
+        System.out.printf("%-12s %7d %12.1f %12.1f %12.1f%n", mode, heavies,
+            latencies[latencies.length / 2] / 1e3,
+            latencies[(int)Math.ceil(latencies.length * 0.99) - 1] / 1e3,
+            latencies[latencies.length - 1] / 1e3);
+    }
+
+    //latency of every short script, in nanoseconds
+    private static long[] run(List<Stmt> heavy, List<Stmt> light, int heavies, Scheduler scheduler)
+            throws InterruptedException {
+        long[] latencies = new long[SHORT_SCRIPTS];
+        AtomicBoolean submitting = new AtomicBoolean(true);
+        //heavy scripts keep going over their program until the last short script is in
+        //(not until they're all done - without a scheduler they might never start)
+        Runnable heavyScripts = () -> {
+            while (submitting.get()) interpret(scheduler, heavy);
+        };
+
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < heavies; i++) {
+                threads.submit(heavyScripts);
+            }
+
+            long next = System.nanoTime();
+            for (int i = 0; i < SHORT_SCRIPTS; i++) {
+                int index = i;
+                long submitted = System.nanoTime();
+                threads.submit(() -> {
+                    interpret(scheduler, light);
+                    latencies[index] = System.nanoTime() - submitted;
+                });
+                next += SUBMIT_INTERVAL_NANOS;
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+            submitting.set(false);
+        }
+        return latencies;
+    }
+
+    //run a script as LoxDaemon would, either right here or on the scheduler
+    private static void interpret(Scheduler scheduler, List<Stmt> statements) {
+        Session session = new Session(discard, discard);
+        Lox.setSession(session);
+        try {
+            Interpreter interpreter = new Interpreter(null, discard);
+            if (scheduler == null) {
+                interpreter.interpret(statements);
+            } else {
+                scheduler.submit(interpreter, statements, 1).join();
+            }
+        } finally {
+            Lox.clearSession();
+        }
+    }
+
+    private static List<Stmt> parse(String source) {
+        Session session = new Session(discard, discard);
+        Lox.setSession(session);
+        try {
+            List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+            if (session.hadError) {
+                throw new IllegalStateException("Benchmark script has a syntax error.");
+            }
+            return statements;
+        } finally {
+            Lox.clearSession();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/*
+ * Generates synthetic Lox scripts for benchmarking the whole pipeline
+ *
+ * Each script's shape is controlled by a handful of knobs (how many statements,
+ * how deeply the expressions nest, how long the string literals are, how many
+ * comment lines and how many prints), so we can turn one up at a time and see how
+ * the scanner, parser and interpreter scale with it. The scripts never fail, so
+ * every run goes all the way through the interpreter
+ *
+ * The knobs and the sizes they're turned up to are listed once, in KNOBS, which
+ * ScalingBenchmark measures - so the files written here are the scripts it times
+ */
+public class GenerateCorpus {
+
+    private static final String[] OPERATORS = { "+", "-", "*" };
+
+    //one property of the script to turn up, and the sizes to try it at
+    static class Knob {
+        final String name;
+        //the corpus files are named 'file'-'value'.lox
+        final String file;
+        final int[] values;
+        final IntFunction<String> corpus;
+
+        Knob(String name, String file, int[] values, IntFunction<String> corpus) {
+            this.name = name;
+            this.file = file;
+            this.values = values;
+            this.corpus = corpus;
+        }
+    }
+
+    //each knob doubles (or so) at every step while the rest stay put
+    static final List<Knob> KNOBS = List.of(
+        new Knob("statements", "statements", new int[] { 1000, 2000, 4000, 8000, 16000 },
+            n -> generate(n, 8, 32, 1, 50, 1)),
+        new Knob("expression depth", "depth", new int[] { 64, 128, 256, 512, 1024, 2048, 4096 },
+            n -> generate(200, n, 32, 1, 50, 1)),
+        new Knob("string size", "strings", new int[] { 256, 1024, 4096, 16384, 65536 },
+            n -> generate(2000, 8, n, 1, 50, 1)),
+        new Knob("comment lines", "comments", new int[] { 1, 2, 4, 8, 16 },
+            n -> generate(2000, 8, 32, n, 50, 1)),
+        new Knob("print percent", "prints", new int[] { 12, 25, 50, 100 },
+            n -> generate(2000, 8, 32, 1, n, 1))
+    );
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("Usage: generate_corpus <output-directory>");
+            System.exit(64);
+        }
+
+        String outputDir = args[0];
+
+        //one family of files per knob
+        for (Knob knob : KNOBS) {
+            for (int value : knob.values) {
+                write(outputDir, knob.file + "-" + value, knob.corpus.apply(value));
+            }
+        }
+    }
+
+    private static void write(String outputDir, String name, String source) throws IOException {
+        try (PrintWriter writer = new PrintWriter(outputDir + "/" + name + ".lox", "UTF-8")) {
+            writer.print(source);
+        }
+    }
+
+    //statements:    number of statements in the script
+    //depth:         how deeply each numeric expression nests its parentheses
+    //stringSize:    length of each string literal (every fourth statement joins two of them)
+    //commentLines:  number of // comment lines before each statement
+    //printPercent:  percentage of statements that print, rather than just evaluate
+    public static String generate(int statements, int depth, int stringSize,
+            int commentLines, int printPercent, long seed) {
+        Random random = new Random(seed);
+        StringBuilder source = new StringBuilder();
+        String text = "x".repeat(Math.max(stringSize, 0));
+
+        for (int i = 0; i < statements; i++) {
+            for (int c = 0; c < commentLines; c++) {
+                source.append("// comment line ").append(c).append(" for statement ").append(i).append('\n');
+            }
+
+            source.append(random.nextInt(100) < printPercent ? "print " : "");
+            if (stringSize > 0 && i % 4 == 3) {
+                source.append('"').append(text).append("\" + \"").append(text).append('"');
+            } else {
+                nestedExpression(source, depth, random);
+            }
+            source.append(";\n");
+        }
+
+        return source.toString();
+    }
+
+    //(((1 + 2) * 3) - 4) ... with 'depth' levels of parentheses - built without recursion
+    //so we can generate depths that the parser itself might not survive
+    private static void nestedExpression(StringBuilder source, int depth, Random random) {
+        for (int d = 0; d < depth; d++) {
+            source.append('(');
+        }
+        source.append(1 + random.nextInt(9));
+        for (int d = 0; d < depth; d++) {
+            source.append(' ').append(OPERATORS[random.nextInt(OPERATORS.length)])
+                  .append(' ').append(1 + random.nextInt(9)).append(')');
+        }
+    }
+}
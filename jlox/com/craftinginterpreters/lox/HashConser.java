@@ -0,0 +1,274 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/*
+ * Hash-consing pass: rebuilds the AST bottom-up so that structurally identical
+ * subexpressions become one shared node, turning the tree into a DAG
+ *
+ * Only subtrees we can prove will never throw a RuntimeError are shared - a node
+ * that might fail keeps its own identity (and its own token) so the error still
+ * reports the line it actually came from
+ *
+ * The tree is walked with an explicit stack, so a deep tree can't overflow the Java
+ * stack. Nodes are looked up by their Shape: what kind of node it is, its operator or
+ * value, and its operands - which have already been replaced by their canonical nodes,
+ * so comparing two shapes never has to walk two trees
+ */
+class HashConser implements Stmt.Visitor<Stmt> {
+
+    //the static type of an error-free subtree
+    //(only inputs are unknown until runtime - everything else is known after parsing)
+    private enum Type { NIL, BOOLEAN, NUMBER, STRING }
+
+    //a node with canonical operands, as a lookup key: operands are compared by identity
+    //and the token's line is left out, so the same formula on another line matches
+    private static class Shape {
+        final Class<?> kind;
+        //operator type of a unary or binary node, value of a literal
+        final Object label;
+        final Expr left;
+        final Expr right;
+
+        Shape(Class<?> kind, Object label, Expr left, Expr right) {
+            this.kind = kind;
+            this.label = label;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Shape)) return false;
+            Shape other = (Shape)object;
+            return kind == other.kind && Objects.equals(label, other.label)
+                && left == other.left && right == other.right;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = kind.hashCode();
+            h = 31 * h + Objects.hashCode(label);
+            h = 31 * h + System.identityHashCode(left);
+            return 31 * h + System.identityHashCode(right);
+        }
+    }
+
+    //canonical node for each distinct error-free subtree
+    private final Map<Shape, Expr> table = new HashMap<>();
+    //static type of each canonical node - missing means the node might fail
+    private final Map<Expr, Type> types = new IdentityHashMap<>();
+    //canonical nodes that turned up more than once and are worth evaluating only once
+    private final Set<Expr> shared = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    //the walk's stacks, kept between expressions so they're only grown once
+    //nodes still to finish - a node is expanded once its operands have been pushed
+    private final List<Expr> frames = new ArrayList<>();
+    private final List<Boolean> expanded = new ArrayList<>();
+    //replacements of finished nodes that their parent hasn't picked up yet
+    private final List<Expr> results = new ArrayList<>();
+    private final List<Expr> operands = new ArrayList<>();
+
+    List<Stmt> share(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            result.add(statement.accept(this));
+        }
+        return result;
+    }
+
+    //nodes the interpreter can safely evaluate once and reuse within a statement
+    Set<Expr> shared() {
+        return shared;
+    }
+
+    @Override
+    public Stmt visitBenchStmt(Stmt.Bench stmt) {
+        Expr iterations = share(stmt.iterations);
+        Expr expression = share(stmt.expression);
+        return (iterations == stmt.iterations && expression == stmt.expression)
+            ? stmt : new Stmt.Bench(stmt.keyword, iterations, expression);
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = share(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = share(stmt.expression);
+        return expression == stmt.expression ? stmt : new Stmt.Print(expression);
+    }
+
+    //the canonical replacement for 'root', rebuilt bottom-up
+    private Expr share(Expr root) {
+        frames.add(root);
+        expanded.add(false);
+        while (!frames.isEmpty()) {
+            int top = frames.size() - 1;
+            Expr expr = frames.get(top);
+
+            if (!expanded.get(top)) {
+                expanded.set(top, true);
+                operands.clear();
+                operandsOf(expr, operands);
+                //pushed last to first, so they finish (and land in 'results') first to last
+                for (int i = operands.size() - 1; i >= 0; i--) {
+                    frames.add(operands.get(i));
+                    expanded.add(false);
+                }
+                continue;
+            }
+
+            frames.remove(top);
+            expanded.remove(top);
+            operands.clear();
+            operandsOf(expr, operands);
+            int first = results.size() - operands.size();
+            List<Expr> replaced = results.subList(first, results.size());
+            Expr node = rebuild(expr, replaced);
+            replaced.clear();
+            results.add(node);
+        }
+        return results.remove(0);
+    }
+
+    private static void operandsOf(Expr expr, List<Expr> operands) {
+        if (expr instanceof Expr.Binary) {
+            operands.add(((Expr.Binary)expr).left);
+            operands.add(((Expr.Binary)expr).right);
+        } else if (expr instanceof Expr.Unary) {
+            operands.add(((Expr.Unary)expr).right);
+        } else if (expr instanceof Expr.Grouping) {
+            operands.add(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Call) {
+            operands.add(((Expr.Call)expr).callee);
+            operands.addAll(((Expr.Call)expr).arguments);
+        }
+    }
+
+    //'expr' with its operands replaced by 'operands' (their canonical nodes), interned
+    //if it can't fail
+    private Expr rebuild(Expr expr, List<Expr> operands) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)expr).value;
+            Type type;
+            if (value == null) type = Type.NIL;
+            else if (value instanceof Boolean) type = Type.BOOLEAN;
+            else if (value instanceof Double) type = Type.NUMBER;
+            else type = Type.STRING;
+
+            return intern(expr, new Shape(Expr.Literal.class, value, null, null), type);
+        }
+
+        //an input's type isn't known until runtime (and it might not be bound at all),
+        //so neither it nor anything built on it is shared
+        if (expr instanceof Expr.Variable) return expr;
+
+        //a call can have side effects (clock() returns something new every time), so it's
+        //never shared - only its arguments can be
+        if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+            boolean changed = operands.get(0) != call.callee;
+            for (int i = 0; i < call.arguments.size(); i++) {
+                changed |= operands.get(i + 1) != call.arguments.get(i);
+            }
+            if (!changed) return expr;
+            return new Expr.Call(operands.get(0), call.paren,
+                new ArrayList<>(operands.subList(1, operands.size())));
+        }
+
+        if (expr instanceof Expr.Grouping) {
+            Expr expression = operands.get(0);
+            Expr node = (expression == ((Expr.Grouping)expr).expression)
+                ? expr : new Expr.Grouping(expression);
+            return intern(node, new Shape(Expr.Grouping.class, null, expression, null),
+                types.get(expression));
+        }
+
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            Expr right = operands.get(0);
+            Type operand = types.get(right);
+
+            Type type = null;
+            if (operand != null) {
+                switch (unary.operator.type) {
+                    case BANG:
+                        type = Type.BOOLEAN;
+                        break;
+                    case MINUS:
+                        if (operand == Type.NUMBER) type = Type.NUMBER;
+                        break;
+                }
+            }
+
+            Expr node = (right == unary.right) ? expr : new Expr.Unary(unary.operator, right);
+            return intern(node, new Shape(Expr.Unary.class, unary.operator.type, right, null), type);
+        }
+
+        Expr.Binary binary = (Expr.Binary)expr;
+        Expr left = operands.get(0);
+        Expr right = operands.get(1);
+        TokenType operator = binary.operator.type;
+        Type type = binaryType(operator, types.get(left), types.get(right));
+
+        Expr node = (left == binary.left && right == binary.right)
+            ? expr : new Expr.Binary(left, binary.operator, right);
+        return intern(node, new Shape(Expr.Binary.class, operator, left, right), type);
+    }
+
+    //mirrors the operand checks in Interpreter.visitBinaryExpr
+    //returns null if the operation could throw a RuntimeError
+    private Type binaryType(TokenType operator, Type left, Type right) {
+        if (left == null || right == null) return null;
+
+        switch (operator) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return (left == Type.NUMBER && right == Type.NUMBER) ? Type.BOOLEAN : null;
+            case MINUS:
+            case SLASH:
+            case STAR:
+                return (left == Type.NUMBER && right == Type.NUMBER) ? Type.NUMBER : null;
+            case PLUS:
+                if (left == Type.NUMBER && right == Type.NUMBER) return Type.NUMBER;
+                if (left == Type.STRING && right == Type.STRING) return Type.STRING;
+                return null;
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                return Type.BOOLEAN;
+        }
+
+        return null;
+    }
+
+    //return the canonical copy of 'node', registering it if this is the first time we've seen it
+    private Expr intern(Expr node, Shape shape, Type type) {
+        //might throw - leave it unshared
+        if (type == null) return node;
+
+        Expr existing = table.putIfAbsent(shape, node);
+        if (existing == null) {
+            types.put(node, type);
+            return node;
+        }
+
+        //literals and groupings are cheaper to re-evaluate than to look up
+        if (existing instanceof Expr.Binary || existing instanceof Expr.Unary) {
+            shared.add(existing);
+        }
+        return existing;
+    }
+}
@@ -0,0 +1,51 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Table of canonical runtime strings, shared by every interpreter in the process
+ *
+ * String literals and short strings built at runtime are replaced by one shared
+ * instance, so equal strings are usually the same object - Interpreter.isEqual can
+ * then answer with a reference comparison instead of scanning characters. Interning
+ * also computes (and String caches) each string's hash up front
+ */
+class Interner {
+
+    //strings built at runtime longer than this aren't worth interning
+    static final int MAX_LENGTH = Integer.getInteger("lox.intern.maxLength", 64);
+
+    //stop adding new strings once the table holds this many characters, so a long-running
+    //process that sees lots of distinct strings (or a few huge literals) can't grow it forever
+    private static final long MAX_CHARS = Long.getLong("lox.intern.maxChars", 1 << 22);
+
+    private static final ConcurrentHashMap<String, String> table = new ConcurrentHashMap<>();
+    //characters in the table - checked before adding, so racing threads may overshoot slightly
+    private static final AtomicLong chars = new AtomicLong();
+
+    private Interner() {}
+
+    //canonical copy of a string literal from the source code (interned regardless of
+    //length, as long as the table has room for it)
+    static String literal(String string) {
+        return intern(string);
+    }
+
+    //canonical copy of a string computed at runtime, if it's short enough to bother
+    static String value(String string) {
+        if (string.length() > MAX_LENGTH) return string;
+        return intern(string);
+    }
+
+    private static String intern(String string) {
+        String existing = table.get(string);
+        if (existing != null) return existing;
+        if (chars.get() + string.length() > MAX_CHARS) return string;
+
+        existing = table.putIfAbsent(string, string);
+        if (existing != null) return existing;
+        chars.addAndGet(string.length());
+        return string;
+    }
+}
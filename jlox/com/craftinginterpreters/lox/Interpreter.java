@@ -1,24 +1,262 @@
 package com.craftinginterpreters.lox;
 
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+
+    //functions built into the language - an input with the same name hides one
+    private static final Map<String, LoxCallable> natives = new HashMap<>();
+
+    //clock() counts from when the interpreter was loaded, so the seconds it returns
+    //stay small enough for a double to hold them to the nanosecond
+    private static final long clockOrigin = System.nanoTime();
+
+    static {
+        natives.put("clock", new LoxCallable() {
+            @Override
+            public int arity() { return 0; }
+
+            @Override
+            public Object call(Interpreter interpreter, List<Object> arguments) {
+                return (System.nanoTime() - clockOrigin) / 1e9;
+            }
+
+            @Override
+            public String toString() { return "<native fn>"; }
+        });
+    }
+
+    static boolean isNative(String name) {
+        return natives.containsKey(name);
+    }
+
+    //a bench statement's iterations are timed in this many batches, to get their spread
+    private static final int BENCH_SAMPLES = 10;
+
+    //optional execution trace - null when tracing is turned off
+    private final Tracer tracer;
+
+    //values of named inputs, bound from outside the script
+    private Map<String, Object> inputs = new HashMap<>();
+
+    //resource limits for untrusted scripts - null for no limits
+    private Budget budget = null;
+    //the statement being executed, for reporting a budget error that has no better token
+    private Stmt statement = null;
+    private static final Token NO_TOKEN = new Token(TokenType.EOF, "", null, 0);
+
+    //the program resume() is working through a slice at a time, and how far it has got
+    private List<Stmt> program = Collections.emptyList();
+    private int nextStatement = 0;
+    private long programNanos = 0;
+    //while resume() is running: nodes the outermost evaluation may still start in this slice
+    private boolean sliced = false;
+    private int sliceSteps = 0;
+    //the outermost evaluation stopped part way through - its frames and values are still
+    //on the stack, and the next evaluate() carries on with them
+    private boolean suspended = false;
+
+    //results of pure subtrees kept across statements, scripts and requests - null when off
+    private ResultCache cache = ResultCache.global;
+    //the subtrees of the current statement to look up in the cache, with their keys
+    private Map<Expr, ResultCache.Key> cacheable = Collections.emptyMap();
+
+    //subexpressions shared by the hash-conser - each is evaluated at most once per statement
+    private Set<Expr> shared = Collections.emptySet();
+    private final Map<Expr, Object> memo = new IdentityHashMap<>();
+
+    //set while tryEvaluate() is running: the usual errors come back as an operator's
+    //result instead of being thrown (see fail())
+    private boolean errorsAsResults = false;
+
+    //where print statements write to
+    private final PrintStream out;
+
+    //splits very large expressions across cores - null to always evaluate serially
+    private final ParallelEvaluator parallel;
+
+    //evaluate()'s explicit work stack, grown as needed and reused between calls:
+    //nodes waiting to be evaluated (or, once 'expanded', waiting for their operands)
+    private Expr[] frames = new Expr[64];
+    private boolean[] expanded = new boolean[64];
+    private int frameCount = 0;
+    //results of finished nodes that an operator further down hasn't used yet
+    private Object[] values = new Object[64];
+    private int valueCount = 0;
+
+    Interpreter() {
+        this(null);
+    }
+
+    Interpreter(Tracer tracer) {
+        this(tracer, System.out);
+    }
+
+    Interpreter(Tracer tracer, PrintStream out) {
+        this(tracer, out, null);
+    }
+
+    Interpreter(Tracer tracer, PrintStream out, ParallelEvaluator parallel) {
+        this.tracer = tracer;
+        this.out = out;
+        this.parallel = parallel;
+    }
+
+    Tracer tracer() {
+        return tracer;
+    }
+
+    //bind a named input - value must be a Lox value (Double, Boolean, String or null for nil)
+    void define(String name, Object value) {
+        inputs.put(name, value);
+    }
+
+    Map<String, Object> inputs() {
+        return inputs;
+    }
+
+    //use 'inputs' as this interpreter's inputs - the map is shared, not copied
+    void setInputs(Map<String, Object> inputs) {
+        this.inputs = inputs;
+    }
+
+    //limit the work done by the following interpret() calls (null to remove the limits)
+    void setBudget(Budget budget) {
+        this.budget = budget;
+    }
+
+    Budget budget() {
+        return budget;
+    }
     
+    //interpret a program that has been through HashConser
+    void interpret(List<Stmt> statements, Set<Expr> shared) {
+        this.shared = shared;
+        try {
+            interpret(statements);
+        } finally {
+            this.shared = Collections.emptySet();
+            memo.clear();
+        }
+    }
+
+    //evaluate each node of 'shared' (from HashConser) at most once per statement in the
+    //following execute() calls - for running a program a statement at a time
+    void setShared(Set<Expr> shared) {
+        this.shared = shared;
+    }
+
+    //use 'cache' instead of the process-wide one (null for none)
+    void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
     void interpret(List<Stmt> statements) {
+        long startTime = System.nanoTime();
         try {
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            report(error);
+        } finally {
+            Metrics.global.interpretLatency.record(System.nanoTime() - startTime);
         }
     }
 
-    private void execute(Stmt stmt) {
+    //get ready to interpret a program a slice at a time with resume() - for a Scheduler,
+    //so one long script can share a thread with many others
+    //(a ParallelEvaluator can't stop between two nodes, so statements are never split here)
+    void start(List<Stmt> statements) {
+        //drop anything an unfinished program left behind
+        if (suspended) {
+            suspended = false;
+            while (frameCount > 0) frames[--frameCount] = null;
+            while (valueCount > 0) values[--valueCount] = null;
+        }
+        program = statements;
+        nextStatement = 0;
+        programNanos = 0;
+    }
+
+    //carry on with the program given to start() for about 'steps' evaluated nodes, stopping
+    //between two nodes or two statements - returns true once the program is over (a runtime
+    //error ends it, and is reported as interpret() would)
+    //a bench statement, once it's evaluated its iteration count, runs to the end in one slice
+    boolean resume(int steps) {
+        long startTime = System.nanoTime();
+        boolean over = false;
+        sliced = true;
+        sliceSteps = steps;
+        try {
+            while (nextStatement < program.size()) {
+                if (sliceSteps <= 0) return false;
+                execute(program.get(nextStatement));
+                nextStatement++;
+            }
+            over = true;
+        } catch (Suspended suspension) {
+            //the statement starts again next time, and its evaluation picks up where it stopped
+            return false;
+        } catch (RuntimeError error) {
+            over = true;
+            report(error);
+        } finally {
+            sliced = false;
+            programNanos += System.nanoTime() - startTime;
+            if (over) {
+                Metrics.global.interpretLatency.record(programNanos);
+                program = Collections.emptyList();
+            }
+        }
+        return true;
+    }
+
+    private void report(RuntimeError error) {
+        //dump what led up to the error before reporting it
+        if (tracer != null) {
+            tracer.error(error);
+            tracer.dump(Lox.session().err);
+        }
+        Lox.runtimeError(error);
+    }
+
+    //run one statement - a RuntimeError propagates to the caller
+    void execute(Stmt stmt) {
+        executeUncounted(stmt);
+        Metrics.global.statementsExecuted.increment();
+    }
+
+    //execute() without counting the statement as executed - for a caller that may yet
+    //throw away what it did, and counts it itself if it keeps it
+    void executeUncounted(Stmt stmt) {
+        statement = stmt;
+        //a suspended statement carries on with the shared values and candidates it had
+        if (!suspended) {
+            if (tracer != null) tracer.enter();
+            if (!memo.isEmpty()) memo.clear();
+            //a cached string would skip the budget's length check, so don't mix the two
+            if (cache != null && (budget == null || budget.maxStringLength == Integer.MAX_VALUE)) {
+                cacheable = ResultCache.candidates(stmt);
+            } else if (!cacheable.isEmpty()) {
+                cacheable = Collections.emptyMap();
+            }
+        }
         stmt.accept(this);
+        if (tracer != null) tracer.statement(stmt);
     }
 
-    private String stringify(Object object) {
+    String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -35,20 +273,330 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
+        evaluateStatement(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitBenchStmt(Stmt.Bench stmt) {
+        Object count = evaluate(stmt.iterations);
+        //stopping part way would start the benchmark over, so it can't be sliced
+        boolean wasSliced = sliced;
+        sliced = false;
+        try {
+            bench(stmt.keyword, count, () -> benchOnce(stmt.expression));
+        } finally {
+            sliced = wasSliced;
+        }
         return null;
     }
 
+    //run 'iteration' 'count' times to warm up, then time another 'count' runs in
+    //BENCH_SAMPLES batches - the standard deviation of ns/op between the batches is the spread
+    void bench(Token keyword, Object count, Runnable iteration) {
+        if (!(count instanceof Double) || (double)count < 1 || (double)count != Math.floor((double)count)) {
+            throw new RuntimeError(keyword, "Iteration count must be a positive whole number.");
+        }
+        long iterations = (long)(double)count;
+
+        for (long i = 0; i < iterations; i++) {
+            iteration.run();
+        }
+
+        int samples = (int)Math.min(BENCH_SAMPLES, iterations);
+        double[] nanosPerOp = new double[samples];
+        long allocatedBefore = allocatedBytes();
+        long done = 0;
+        for (int sample = 0; sample < samples; sample++) {
+            long batch = (iterations - done) / (samples - sample);
+            long start = System.nanoTime();
+            for (long i = 0; i < batch; i++) {
+                iteration.run();
+            }
+            nanosPerOp[sample] = (System.nanoTime() - start) / (double)batch;
+            done += batch;
+        }
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        double mean = 0;
+        for (double nanos : nanosPerOp) mean += nanos;
+        mean /= samples;
+        double variance = 0;
+        for (double nanos : nanosPerOp) variance += (nanos - mean) * (nanos - mean);
+        double deviation = samples > 1 ? Math.sqrt(variance / (samples - 1)) : 0;
+
+        String bytesPerOp = (allocatedBefore < 0)
+            ? "?" : String.format(Locale.ROOT, "%.1f", allocated / (double)iterations);
+        out.println(String.format(Locale.ROOT,
+            "bench [line %d]: %.2f +/- %.2f ns/op, %s bytes/op (%d iterations)",
+            keyword.line, mean, deviation, bytesPerOp, iterations));
+    }
+
+    private void benchOnce(Expr expr) {
+        //shared nodes would otherwise only be evaluated by the first iteration
+        if (!memo.isEmpty()) memo.clear();
+        evaluate(expr);
+    }
+
+    //bytes allocated by this thread so far, or -1 if the JVM can't tell us
+    private static long allocatedBytes() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+        return threads.isThreadAllocatedMemoryEnabled() ? threads.getCurrentThreadAllocatedBytes() : -1;
+    }
+
     @Override
     public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        System.out.println(stringify(value));
+        Object value = evaluateStatement(stmt.expression);
+        out.println(stringify(value));
         return null;
     }
 
+    //evaluate the whole expression of a statement - this is where a big tree gets split up
+    private Object evaluateStatement(Expr expr) {
+        //a split evaluation runs to the end, so in a slice it's done here instead
+        if (parallel != null && !sliced && parallel.isLarge(expr)) {
+            return parallel.evaluate(expr, inputs, budget);
+        }
+        return evaluate(expr);
+    }
+
     //evaluate an expression
-    private Object evaluate(Expr expr) {
-        return expr.accept(this);
+    //walks the tree with an explicit stack instead of recursing, so nesting depth is only
+    //limited by the heap - nodes are still visited in the same order as the visitor would
+    //(operator first, then the left operand, then the right), so budget steps, trace
+    //events and errors come out exactly as before
+    //in a slice, the outermost evaluation stops (with Suspended) when the slice is used up,
+    //leaving its stack as it is - the statement is run again next slice, and as the same
+    //evaluate() is reached first it carries on from there instead of pushing 'expr' again
+    Object evaluate(Expr expr) {
+        //we may be called again from inside a visit, so only ever touch the stack above here
+        int frameBase = suspended ? 0 : frameCount;
+        int valueBase = suspended ? 0 : valueCount;
+        try {
+            if (suspended) {
+                suspended = false;
+            } else {
+                push(expr);
+            }
+            while (frameCount > frameBase) {
+                int top = frameCount - 1;
+                Expr node = frames[top];
+
+                if (expanded[top]) {
+                    //its operands are done - apply the operator
+                    //(the frame stays on the stack until it succeeds, for the cache below)
+                    Object value;
+                    if (node instanceof Expr.Binary) {
+                        Object right = popValue();
+                        Object left = popValue();
+                        value = binary(((Expr.Binary)node).operator, left, right);
+                    } else if (node instanceof Expr.Call) {
+                        Expr.Call call = (Expr.Call)node;
+                        List<Object> arguments = new ArrayList<>(call.arguments.size());
+                        int first = valueCount - call.arguments.size();
+                        for (int i = first; i < valueCount; i++) arguments.add(values[i]);
+                        while (valueCount > first) popValue();
+                        value = call(call.paren, popValue(), arguments);
+                    } else if (node instanceof Expr.Unary) {
+                        value = unary(((Expr.Unary)node).operator, popValue());
+                    } else {
+                        value = popValue();
+                    }
+                    if (value instanceof RuntimeError) return failed(frameBase, (RuntimeError)value);
+                    frames[top] = null;
+                    frameCount = top;
+                    if (!cacheable.isEmpty()) {
+                        ResultCache.Key key = cacheable.get(node);
+                        if (key != null) cache.putValue(key, node, value);
+                    }
+                    finish(node, value);
+                    continue;
+                }
+
+                //a node that hasn't been started is a safe place to stop
+                if (sliced && frameBase == 0 && --sliceSteps < 0) {
+                    suspended = true;
+                    throw Suspended.instance;
+                }
+
+                if (budget != null && !budget.step()) throw budget.exceeded(budgetToken());
+
+                //shared nodes are pure and can't fail, so the first result can be reused
+                if (shared.contains(node)) {
+                    Object value = memo.get(node);
+                    if (value != null || memo.containsKey(node)) {
+                        frames[top] = null;
+                        frameCount = top;
+                        if (tracer != null) tracer.expression(node, value);
+                        pushValue(value);
+                        continue;
+                    }
+                }
+
+                //seen this formula before?
+                ResultCache.Key key = cacheable.isEmpty() ? null : cacheable.get(node);
+                if (key != null) {
+                    ResultCache.Entry entry = cache.get(key, node);
+                    if (entry != null) {
+                        if (entry.error != null) {
+                            RuntimeError error = cache.error(entry, node);
+                            if (!errorsAsResults) throw error;
+                            return error;
+                        }
+                        frames[top] = null;
+                        frameCount = top;
+                        finish(node, entry.value);
+                        continue;
+                    }
+                }
+
+                //push the right operand first so the left one is evaluated first
+                if (node instanceof Expr.Binary) {
+                    Expr.Binary binary = (Expr.Binary)node;
+                    expanded[top] = true;
+                    push(binary.right);
+                    push(binary.left);
+                } else if (node instanceof Expr.Call) {
+                    //callee first, then the arguments from left to right
+                    Expr.Call call = (Expr.Call)node;
+                    expanded[top] = true;
+                    for (int i = call.arguments.size() - 1; i >= 0; i--) push(call.arguments.get(i));
+                    push(call.callee);
+                } else if (node instanceof Expr.Unary) {
+                    expanded[top] = true;
+                    push(((Expr.Unary)node).right);
+                } else if (node instanceof Expr.Grouping) {
+                    expanded[top] = true;
+                    push(((Expr.Grouping)node).expression);
+                } else {
+                    //a leaf - literal or input
+                    Object value = node.accept(this);
+                    if (value instanceof RuntimeError) return failed(frameBase, (RuntimeError)value);
+                    frames[top] = null;
+                    frameCount = top;
+                    finish(node, value);
+                }
+            }
+            return values[valueCount - 1];
+        } catch (RuntimeError error) {
+            //a pure subtree fails the same way every time, but running out of budget doesn't
+            if (!cacheable.isEmpty() && !(error instanceof BudgetError)) {
+                cacheError(frameBase, error);
+            }
+            throw error;
+        } finally {
+            //drop the result, and anything an error left behind, so nothing is kept alive
+            if (!suspended) {
+                while (frameCount > frameBase) frames[--frameCount] = null;
+                while (valueCount > valueBase) values[--valueCount] = null;
+            }
+        }
+    }
+
+    //the token to report a budget error against: the node being started if it has one,
+    //or else the nearest operator it's an operand of - failing that (a statement with no
+    //operators at all) the bench keyword, or a stand-in at line 0
+    private Token budgetToken() {
+        for (int i = frameCount - 1; i >= 0; i--) {
+            //below the top, only expanded frames are ancestors - the rest are operands
+            //still waiting their turn
+            if (i < frameCount - 1 && !expanded[i]) continue;
+            Expr node = frames[i];
+            if (node instanceof Expr.Binary) return ((Expr.Binary)node).operator;
+            if (node instanceof Expr.Unary) return ((Expr.Unary)node).operator;
+            if (node instanceof Expr.Call) return ((Expr.Call)node).paren;
+            if (node instanceof Expr.Variable) return ((Expr.Variable)node).name;
+        }
+        if (statement instanceof Stmt.Bench) return ((Stmt.Bench)statement).keyword;
+        return NO_TOKEN;
+    }
+
+    //thrown out of a sliced evaluation when its slice runs out - never seen outside resume()
+    private static class Suspended extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        static final Suspended instance = new Suspended();
+
+        private Suspended() {
+            //no stack trace - this isn't an error
+            super(null, null, false, false);
+        }
+    }
+
+    //evaluate without throwing: returns the expression's value, or the RuntimeError it failed
+    //with - the caller can tell them apart, as no Lox value is a RuntimeError
+    //the errors a script can make (type errors, undefined names, bad calls) come straight
+    //back through the evaluation loop without being thrown, so a run where most
+    //evaluations fail goes about as fast as one where they succeed
+    //nothing is reported - that's up to the caller - but the error is traced, as a thrown
+    //one would be when it's reported
+    //BatchEvaluator evaluates calls this way, one row at a time
+    Object tryEvaluate(Expr expr) {
+        boolean wasAsResults = errorsAsResults;
+        errorsAsResults = true;
+        Object value;
+        try {
+            value = evaluate(expr);
+        } catch (RuntimeError error) {
+            //budget errors (and cached ones) are still thrown
+            value = error;
+        } finally {
+            errorsAsResults = wasAsResults;
+        }
+        if (tracer != null && value instanceof RuntimeError) tracer.error((RuntimeError)value);
+        return value;
+    }
+
+    //an operator handed back an error instead of throwing it - stop the evaluation with it
+    //just as the catch in evaluate() would have
+    private RuntimeError failed(int frameBase, RuntimeError error) {
+        if (!cacheable.isEmpty()) cacheError(frameBase, error);
+        return error;
+    }
+
+    //the frames still expanded when an error comes through are the failing node and its
+    //ancestors - cache the error for the one that's a cached subtree, if any
+    private void cacheError(int frameBase, RuntimeError error) {
+        for (int i = frameCount - 1; i >= frameBase; i--) {
+            if (!expanded[i]) continue;
+            ResultCache.Key key = cacheable.get(frames[i]);
+            if (key != null) {
+                cache.putError(key, frames[i], error);
+                return;
+            }
+        }
+    }
+
+    private void push(Expr expr) {
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+            expanded = Arrays.copyOf(expanded, frameCount * 2);
+        }
+        frames[frameCount] = expr;
+        expanded[frameCount] = false;
+        frameCount++;
+    }
+
+    private void pushValue(Object value) {
+        if (valueCount == values.length) {
+            values = Arrays.copyOf(values, valueCount * 2);
+        }
+        values[valueCount++] = value;
+    }
+
+    private Object popValue() {
+        Object value = values[--valueCount];
+        values[valueCount] = null;
+        return value;
+    }
+
+    //a node has been evaluated - remember it if it's shared, trace it, and hand it to its parent
+    private void finish(Expr expr, Object value) {
+        if (shared.contains(expr)) memo.put(expr, value);
+        if (tracer != null) tracer.expression(expr, value);
+        pushValue(value);
     }
 
     //handle literals
@@ -57,22 +605,69 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.value;
     }
 
+    //handle inputs (and the natives they don't hide)
+    @Override
+    public Object visitVariableExpr(Expr.Variable expr) {
+        return variable(expr.name);
+    }
+
+    //look up an input, or failing that a native, by name
+    Object variable(Token name) {
+        Object value = inputs.get(name.lexeme);
+        if (value == null && !inputs.containsKey(name.lexeme)) {
+            LoxCallable function = natives.get(name.lexeme);
+            if (function != null) return function;
+            return fail(name, "Undefined variable '" + name.lexeme + "'.");
+        }
+        return value;
+    }
+
     //handle grouping (parentheses)
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         return evaluate(expr.expression);
     }
 
+    //handle function calls
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        Object callee = evaluate(expr.callee);
+        List<Object> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments) {
+            arguments.add(evaluate(argument));
+        }
+        return call(expr.paren, callee, arguments);
+    }
+
+    //call an already evaluated callee with already evaluated arguments
+    Object call(Token paren, Object callee, List<Object> arguments) {
+        if (!(callee instanceof LoxCallable)) {
+            return fail(paren, "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable)callee;
+        if (arguments.size() != function.arity()) {
+            return fail(paren, "Expected " + function.arity() +
+                " arguments but got " + arguments.size() + ".");
+        }
+
+        return function.call(this, arguments);
+    }
+
     //handle unary expression
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
         Object right = evaluate(expr.right);
+        return unary(expr.operator, right);
+    }
 
-        switch (expr.operator.type) {
+    //apply a unary operator to an already evaluated operand
+    Object unary(Token operator, Object right) {
+        switch (operator.type) {
             case BANG:
                 return !isTruthy(right);
             case MINUS:
-                checkNumberOperand(expr.operator, right);
+                if (!(right instanceof Double)) return fail(operator, "Operand must be a number.");
                 return -(double)right;
         }
 
@@ -91,28 +686,39 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitBinaryExpr(Expr.Binary expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        return binary(expr.operator, left, right);
+    }
+
+    //apply a binary operator to already evaluated operands
+    Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+            case MINUS:
+            case SLASH:
+            case STAR:
+                if (!(left instanceof Double) || !(right instanceof Double)) {
+                    return fail(operator, "Operands must be numbers.");
+                }
+                break;
+        }
 
-        switch (expr.operator.type) {
+        switch (operator.type) {
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
                 return (double)left >= (double)right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
                 return (double)left < (double)right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
                 return (double)left <= (double)right;
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
                 return (double)left - (double)right;
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
                 return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
                 return (double)left * (double)right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
@@ -120,10 +726,13 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 }
 
                 if (left instanceof String && right instanceof String) {
-                    return (String)left + (String)right;
+                    if (budget != null) {
+                        budget.checkString(operator, (long)((String)left).length() + ((String)right).length());
+                    }
+                    return Interner.value((String)left + (String)right);
                 }
 
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                return fail(operator, "Operands must be two numbers or two strings.");
             
             case EQUAL_EQUAL:
                 return isEqual(left, right);
@@ -136,21 +745,18 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null) return true;
+        //interned strings (and the same object twice) are equal without a character scan
+        if (a == b) return true;
         if (a == null) return false;
         return a.equals(b);
     }
 
-    //runtime error handling - check operand is a number
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double) return;
-        throw new RuntimeError(operator, "Operand must be a number.");
-    }
-
-    //same again but for two operands
-    private void checkNumberOperands(Token operator, Object left, Object right) {
-        if (left instanceof Double && right instanceof Double) return;
-        throw new RuntimeError(operator, "Operands must be numbers.");
+    //runtime error handling - throw the error, or in tryEvaluate() hand it back as the
+    //operator's result for evaluate() to stop with (a RuntimeError is never a Lox value)
+    private Object fail(Token token, String message) {
+        RuntimeError error = new RuntimeError(token, message);
+        if (!errorsAsResults) throw error;
+        return error;
     }
 
 }
@@ -0,0 +1,75 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Histogram of durations with one bucket per power of 2 nanoseconds
+ *
+ * Every bucket is a LongAdder, which spreads concurrent increments over several
+ * cells instead of having every thread fight over one counter
+ */
+class LatencyHistogram {
+
+    //bucket i counts durations in [2^(i-1), 2^i) nanoseconds - bucket 0 is exactly 0
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+        totalNanos.add(nanos);
+    }
+
+    long count() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    double meanMicros() {
+        long count = count();
+        if (count == 0) return 0;
+        return totalNanos.sum() / 1000.0 / count;
+    }
+
+    //upper bound of the bucket holding the given percentile (0-100), in microseconds
+    double percentileMicros(double percentile) {
+        long[] counts = bucketCounts();
+        long total = 0;
+        for (long count : counts) total += count;
+        if (total == 0) return 0;
+
+        long target = (long)Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) return Math.pow(2, i) / 1000.0;
+        }
+        return Math.pow(2, BUCKETS - 1) / 1000.0;
+    }
+
+    long[] bucketCounts() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        totalNanos.reset();
+    }
+}
@@ -1,21 +1,87 @@
 package com.craftinginterpreters.lox;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 public class Lox {
 
-    private static final Interpreter interpreter = new Interpreter();
+    //run with -Dlox.parallel=true to split very large expressions across cores
+    private static final ParallelEvaluator parallel = ParallelEvaluator.fromSystemProperty();
 
-    static boolean hadError = false;
-    static boolean hadRuntimeError = false;
+    //run with -Dlox.trace=<events> to keep a trace of the last few evaluation steps
+    private static final Interpreter interpreter =
+        new Interpreter(Tracer.fromSystemProperty(), System.out, parallel);
+
+    //run with -Dlox.hashcons=true to share identical subexpressions before interpreting
+    private static final boolean hashCons = Boolean.getBoolean("lox.hashcons");
+
+    //run with -Dlox.concurrent=true to run top-level statements in parallel (output stays in order)
+    private static final boolean concurrent = Boolean.getBoolean("lox.concurrent");
+
+    //run with -Dlox.ast=sexpr or -Dlox.ast=json to dump the syntax tree before running it
+    //(and -Dlox.ast.lines=true to include the line of every node that has one) - read in main()
+    private static AstWriter.Format astFormat = null;
+
+    //run with -Dlox.records=true to run the records form of the tree with switch dispatch instead
+    //(that evaluator recurses, so it's for comparing dispatch, not for very deeply nested scripts)
+    //- none of the other evaluation options apply to it, so main() refuses them
+    private static final boolean records = Boolean.getBoolean("lox.records");
+
+    //run with -Dlox.pipeline=true to scan, parse and interpret on separate threads at once
+    private static final boolean pipelined = Boolean.getBoolean("lox.pipeline");
+
+    //error flags and output streams for whatever is running on the current thread
+    //(the command line only ever has one, the daemon has one per request)
+    private static final ThreadLocal<Session> session =
+        ThreadLocal.withInitial(() -> new Session(System.out, System.err));
+
+    static Session session() {
+        return session.get();
+    }
+
+    static void setSession(Session current) {
+        session.set(current);
+    }
+
+    static void clearSession() {
+        session.remove();
+    }
 
     public static void main(String[] args) throws IOException {
+        //run with -Dlox.jmx=true to watch the interpreter's metrics over JMX
+        if (Boolean.getBoolean("lox.jmx")) {
+            Metrics.registerMBean();
+        }
+
+        String conflict = conflictingOptions();
+        if (conflict != null) {
+            System.err.println(conflict);
+            System.exit(64);
+        }
+
+        String ast = System.getProperty("lox.ast");
+        if (ast != null) {
+            try {
+                astFormat = AstWriter.Format.valueOf(ast.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException error) {
+                System.err.println("Unknown -Dlox.ast format '" + ast + "' (expected sexpr or json).");
+                System.exit(64);
+            }
+        }
+
         if (args.length > 1) {
             //invalid number of arguments
             System.out.println("Usage: jlox [script]");
@@ -29,6 +95,46 @@ public class Lox {
         }
     }
 
+    //why the -Dlox.* options given can't be used together, or null if they can
+    private static String conflictingOptions() {
+        if (concurrent && interpreter.tracer() != null) {
+            return "-Dlox.concurrent can't be combined with -Dlox.trace (a trace follows a single thread).";
+        }
+        if (parallel != null && interpreter.tracer() != null) {
+            return "-Dlox.parallel can't be combined with -Dlox.trace (the pool's workers keep no trace).";
+        }
+        if (concurrent && pipelined) {
+            return "-Dlox.concurrent can't be combined with -Dlox.pipeline.";
+        }
+        if (pipelined) {
+            //statements run as they're parsed, on an interpreter of the pipeline's own
+            List<String> unsupported = new ArrayList<>();
+            if (System.getProperty("lox.ast") != null) unsupported.add("-Dlox.ast");
+            if (parallel != null) unsupported.add("-Dlox.parallel");
+            if (ResultCache.global != null) unsupported.add("-Dlox.cache");
+            if (!unsupported.isEmpty()) {
+                return "-Dlox.pipeline can't be combined with " + String.join(", ", unsupported)
+                    + " (the pipeline runs each statement as soon as it is parsed, without them).";
+            }
+        }
+        if (records) {
+            //SwitchInterpreter is a plain tree walk - none of these would do anything
+            List<String> unsupported = new ArrayList<>();
+            if (Budget.fromSystemProperties() != null) unsupported.add("-Dlox.budget.*");
+            if (hashCons) unsupported.add("-Dlox.hashcons");
+            if (concurrent) unsupported.add("-Dlox.concurrent");
+            if (parallel != null) unsupported.add("-Dlox.parallel");
+            if (interpreter.tracer() != null) unsupported.add("-Dlox.trace");
+            if (pipelined) unsupported.add("-Dlox.pipeline");
+            if (ResultCache.global != null) unsupported.add("-Dlox.cache");
+            if (!unsupported.isEmpty()) {
+                return "-Dlox.records can't be combined with " + String.join(", ", unsupported)
+                    + " (the records evaluator has no steps to count, trace, share, cache or split).";
+            }
+        }
+        return null;
+    }
+
     //run a file, with the path specified from the command line
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
@@ -37,11 +143,9 @@ public class Lox {
         run(new String(bytes, Charset.defaultCharset()));
 
         //check for errors
-        if (hadError) {
-            System.exit(65);
-        }
-        if (hadRuntimeError) {
-            System.exit(70);
+        int exitCode = session().exitCode();
+        if (exitCode != 0) {
+            System.exit(exitCode);
         }
     }
 
@@ -64,18 +168,33 @@ public class Lox {
             
             //reset hadError flag - if the user types an incorrect line in the interactive session,
             //they should just be able to retry instead of it crashing
-            hadError = false;
+            session().hadError = false;
         }
     }
 
     //main run() function
     //actually does something!!
     private static void run(String source) {
+        Metrics.global.scriptsRun.increment();
+        //-Dlox.budget.* limits apply to each run separately, whichever way it runs
+        Budget budget = Budget.fromSystemProperties();
+
+        if (pipelined) {
+            Pipeline.run(source, interpreter.tracer(), hashCons, budget);
+            return;
+        }
         
         Scanner scanner = new Scanner(source);
         List<Token> tokens = scanner.scanTokens();
         Parser parser = new Parser(tokens);
-        List<Stmt> statements = parser.parse();
+        List<Stmt> statements;
+        try {
+            statements = parser.parse();
+        } catch (Parser.ParseError error) {
+            //parse() gives up at the first error, once it has reported it
+            //(so hadError is set, and we stop just below)
+            statements = Collections.emptyList();
+        }
 
         //print the tokens
         /*
@@ -85,14 +204,48 @@ public class Lox {
         */
 
         //stop if there was a syntax error
-        if (hadError) {
+        if (session().hadError) {
             return;
         }
 
         //print AST
-        //System.out.println(new AstPrinter().print(expression));
+        if (astFormat != null) {
+            //buffered, as the writer appends a few characters at a time
+            Writer writer = new BufferedWriter(new OutputStreamWriter(session().out, Charset.defaultCharset()));
+            try {
+                new AstWriter(writer, astFormat, Boolean.getBoolean("lox.ast.lines")).write(statements);
+                writer.flush();
+            } catch (IOException error) {
+                //the PrintStream underneath never throws
+                throw new AssertionError(error);
+            }
+        }
+
+        if (records) {
+            new SwitchInterpreter(session().out).interpret(SwitchInterpreter.convert(statements));
+            return;
+        }
 
-        interpreter.interpret(statements);
+        Set<Expr> shared = Collections.emptySet();
+        if (hashCons) {
+            HashConser conser = new HashConser();
+            statements = conser.share(statements);
+            shared = conser.shared();
+        }
+
+        //measure expressions once, so the interpreter knows which are worth splitting
+        //(after hash-consing, as sizes are keyed by the nodes that will actually run)
+        if (parallel != null) {
+            parallel.prepare(statements);
+        }
+
+        if (concurrent) {
+            new ParallelStatements(ForkJoinPool.commonPool(), session().out, parallel, shared, budget)
+                .interpret(statements);
+        } else {
+            interpreter.setBudget(budget);
+            interpreter.interpret(statements, shared);
+        }
         
     }
 
@@ -101,10 +254,12 @@ public class Lox {
         report(line, "", message);
     }
 
-    //error reporting helper function: print to stderr and set hadError class attribute
+    //error reporting helper function: print to stderr and set the session's hadError flag
     private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
-        hadError = true;
+        Session current = session();
+        current.err.println("[line " + line + "] Error" + where + ": " + message);
+        current.hadError = true;
+        Metrics.global.syntaxErrors.increment();
     }
 
     //show an error at a particular token to the user, with a given message
@@ -117,9 +272,11 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
+        Session current = session();
+        current.err.println(error.getMessage() +
             "\n[line " + error.token.line + "]");
-        hadRuntimeError = true;
+        current.hadRuntimeError = true;
+        Metrics.global.runtimeErrors.increment();
     }
 
 }
\ No newline at end of file
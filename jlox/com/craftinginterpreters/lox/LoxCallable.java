@@ -0,0 +1,9 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+//anything that can be called with (...) - for now, just the native functions
+interface LoxCallable {
+    int arity();
+    Object call(Interpreter interpreter, List<Object> arguments);
+}
@@ -0,0 +1,215 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Checks the syntax of .lox files without running them, for CI
+ *
+ * Every path on the command line is a file to check or a directory to search, recursively,
+ * for files ending in .lox (symbolic links inside a directory aren't followed). Listing
+ * directories and checking files are both fork/join tasks, so one big directory or one deep
+ * tree is spread across the pool as well as many small ones. Each worker thread keeps a
+ * Scanner and a Parser and resets them for every file, so their token list and expression
+ * stacks are allocated once per thread, not once per file
+ *
+ * Diagnostics go to stdout as one JSON object per line, a file's worth at a time as soon as
+ * it has been checked (files come out in whatever order they finish):
+ *   {"file":"src/a.lox","line":3,"message":"Error at ';': Expect expression."}
+ * A file that can't be read gets line 0. A summary, with files per second, goes to stderr.
+ * The exit code is 65 if any file had an error, as for jlox, and 0 otherwise
+ *
+ * Usage: jlox-check <path>...
+ */
+public class LoxCheck {
+
+    //run with -Dlox.check.threads=<n> for n workers (default: one per core)
+    private static final int THREADS =
+        Integer.getInteger("lox.check.threads", Runtime.getRuntime().availableProcessors());
+
+    //one per pool thread, reused for every file that thread checks
+    private static final ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+
+    //diagnostics from every worker - each file's lines are written and flushed in one go,
+    //under its lock
+    private static final Writer out =
+        new BufferedWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()));
+
+    private static final LongAdder files = new LongAdder();
+    private static final LongAdder bytes = new LongAdder();
+    private static final LongAdder failedFiles = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+
+    private static class Worker {
+        final Scanner scanner = new Scanner("");
+        final Parser parser = new Parser(Collections.emptyList());
+        final List<Scanner.ScanError> scanErrors = new ArrayList<>();
+        final List<Parser.ParseError> parseErrors = new ArrayList<>();
+        //this file's diagnostics, built up before taking the output lock
+        final StringBuilder diagnostics = new StringBuilder();
+    }
+
+    //a file to check, or a directory to look for files in
+    private static class Check extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Path path;
+        private final boolean directory;
+
+        Check(Path path, boolean directory) {
+            this.path = path;
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            if (directory) {
+                walk(path);
+            } else {
+                check(path);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: jlox-check <path>...");
+            System.exit(64);
+        }
+
+        //paths named on the command line are followed even if they're links
+        List<Check> roots = new ArrayList<>();
+        for (String arg : args) {
+            Path path = Path.of(arg);
+            roots.add(new Check(path, Files.isDirectory(path)));
+        }
+
+        long startTime = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(THREADS);
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(roots);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+        out.flush();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        System.err.printf("checked %d files (%.1f MB) in %.2f s, %.0f files/s: %d errors in %d files%n",
+            files.sum(), bytes.sum() / 1e6, seconds, files.sum() / seconds, errors.sum(), failedFiles.sum());
+        if (errors.sum() > 0) {
+            System.exit(65);
+        }
+    }
+
+    //check every .lox file under 'directory', a task for each file and subdirectory
+    private static void walk(Path directory) {
+        List<Check> children = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes =
+                    Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isDirectory()) {
+                    children.add(new Check(entry, true));
+                } else if (attributes.isRegularFile() && entry.getFileName().toString().endsWith(".lox")) {
+                    children.add(new Check(entry, false));
+                }
+            }
+        } catch (IOException error) {
+            unreadable(directory, error);
+        }
+        //whatever was listed before an error still gets checked
+        RecursiveAction.invokeAll(children);
+    }
+
+    //scan and parse one file, and write out its diagnostics
+    private static void check(Path file) {
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(file);
+        } catch (IOException error) {
+            unreadable(file, error);
+            return;
+        }
+        String source = new String(contents, Charset.defaultCharset());
+        files.increment();
+        bytes.add(contents.length);
+
+        Worker worker = workers.get();
+        worker.scanErrors.clear();
+        worker.parseErrors.clear();
+        worker.scanner.reset(source);
+        worker.parser.reset(worker.scanner.scanTokens(worker.scanErrors));
+        worker.parser.parse(worker.parseErrors);
+
+        int count = worker.scanErrors.size() + worker.parseErrors.size();
+        if (count == 0) return;
+
+        //the same order and wording as jlox: every scanner error, then every parser error
+        StringBuilder diagnostics = worker.diagnostics;
+        diagnostics.setLength(0);
+        String name = file.toString();
+        for (Scanner.ScanError error : worker.scanErrors) {
+            diagnostic(diagnostics, name, error.line, "Error: " + error.message);
+        }
+        for (Parser.ParseError error : worker.parseErrors) {
+            String where = error.token.type == TokenType.EOF ? " at end" : " at '" + error.token.lexeme + "'";
+            diagnostic(diagnostics, name, error.token.line, "Error" + where + ": " + error.getMessage());
+        }
+        write(diagnostics);
+        errors.add(count);
+        failedFiles.increment();
+    }
+
+    private static void unreadable(Path path, IOException error) {
+        StringBuilder diagnostics = new StringBuilder();
+        diagnostic(diagnostics, path.toString(), 0, "Error: can't read (" + error.getClass().getSimpleName() + ")");
+        write(diagnostics);
+        errors.increment();
+        failedFiles.increment();
+    }
+
+    private static void diagnostic(StringBuilder diagnostics, String file, int line, String message) {
+        try {
+            diagnostics.append("{\"file\":");
+            AstWriter.string(diagnostics, file);
+            diagnostics.append(",\"line\":").append(line).append(",\"message\":");
+            AstWriter.string(diagnostics, message);
+            diagnostics.append("}\n");
+        } catch (IOException error) {
+            //a StringBuilder never throws
+            throw new AssertionError(error);
+        }
+    }
+
+    private static void write(CharSequence diagnostics) {
+        synchronized (out) {
+            try {
+                out.append(diagnostics);
+                //out straight away, so a long run (or one that's killed) shows what it found so far
+                out.flush();
+            } catch (IOException error) {
+                //the PrintStream underneath never throws
+                throw new AssertionError(error);
+            }
+        }
+    }
+}
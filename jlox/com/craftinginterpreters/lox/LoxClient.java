@@ -0,0 +1,67 @@
+package com.craftinginterpreters.lox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/*
+ * Thin client for LoxDaemon: sends a script to the daemon and copies its output
+ * back to our stdout/stderr, exiting with the same code jlox would have (65 or 70)
+ *
+ * Usage: jlox-client <socket-path> [script]   (reads the script from stdin if no file is given)
+ */
+public class LoxClient {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: jlox-client <socket-path> [script]");
+            System.exit(64);
+        }
+
+        byte[] source = (args.length == 2)
+            ? Files.readAllBytes(Path.of(args[1]))
+            : System.in.readAllBytes();
+
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(args[0]));
+
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            out.writeInt(source.length);
+            out.write(source);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            while (true) {
+                byte stream;
+                try {
+                    stream = in.readByte();
+                } catch (EOFException error) {
+                    //daemon hung up without telling us how it went
+                    System.err.println("jlox daemon closed the connection.");
+                    System.exit(70);
+                    return;
+                }
+
+                int length = in.readInt();
+                if (stream == LoxDaemon.EXIT) {
+                    System.out.flush();
+                    System.exit(length);
+                }
+
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                PrintStream target = (stream == LoxDaemon.STDERR) ? System.err : System.out;
+                target.write(bytes);
+                target.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.craftinginterpreters.lox;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Keeps a warmed-up interpreter resident and runs scripts sent to it over a
+ * Unix domain socket, so each run doesn't pay for JVM startup and JIT warmup
+ *
+ * Protocol (all integers big-endian):
+ *   client -> daemon:  [int length][length bytes of UTF-8 source]
+ *   daemon -> client:  any number of [byte stream][int length][bytes] frames,
+ *                      where stream is STDOUT or STDERR, then [byte EXIT][int code]
+ *
+ * Each request runs on its own virtual thread with its own Session, so one
+ * script's errors never leak into another's exit code. The scripts themselves take
+ * turns on a fixed set of carrier threads (see Scheduler), so a long-running one
+ * can't hold up the short ones behind it. A client that disconnects before its script
+ * is done has the script cancelled (through its Budget)
+ */
+public class LoxDaemon {
+
+    static final byte STDOUT = 1;
+    static final byte STDERR = 2;
+    static final byte EXIT   = 0;
+
+    //longest script the daemon will take, in bytes - the length prefix is read before anything
+    //is known about the client, so it can't be trusted to size a buffer on its own
+    private static final int MAX_REQUEST_BYTES = Integer.getInteger("lox.daemon.maxRequestBytes", 16 << 20);
+
+    //how many parsed programs to keep around, keyed by a hash of their source
+    private static final int CACHE_SIZE = Integer.getInteger("lox.daemon.cache", 256);
+
+    //shares the CPU fairly between the requests being served (-Dlox.schedule.*)
+    private static final Scheduler scheduler = Scheduler.fromSystemProperties();
+
+    //least-recently-used cache of parsed programs - only programs without syntax errors go in here
+    private static final Map<String, List<Stmt>> parsed = Collections.synchronizedMap(
+        new LinkedHashMap<String, List<Stmt>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Stmt>> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        });
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("Usage: jlox-daemon <socket-path>");
+            System.exit(64);
+        }
+
+        Path socketPath = Path.of(args[0]);
+        //clean up after a previous daemon that didn't shut down cleanly
+        Files.deleteIfExists(socketPath);
+
+        warmUp();
+        //don't count the warmup runs, and let monitoring tools see the real ones
+        Metrics.global.reset();
+        Metrics.registerMBean();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+             ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            System.err.println("jlox daemon listening on " + socketPath);
+
+            while (true) {
+                SocketChannel client = server.accept();
+                workers.submit(() -> serve(client));
+            }
+        } finally {
+            Files.deleteIfExists(socketPath);
+        }
+    }
+
+    //run a small program a few thousand times so the scanner, parser and
+    //interpreter are already compiled by the time the first real request arrives
+    private static void warmUp() {
+        String source = "print (1 + 2) * 3 - 4 / 5 >= 6 == !(\"a\" + \"b\" != \"ab\");";
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+        Session session = new Session(discard, discard);
+        Lox.setSession(session);
+        try {
+            for (int i = 0; i < 5000; i++) {
+                execute(source, session, null);
+            }
+        } finally {
+            Lox.clearSession();
+        }
+    }
+
+    //handle one connection: read the script, run it, stream the output back
+    private static void serve(SocketChannel client) {
+        try (client) {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+            DataOutputStream wire = new DataOutputStream(Channels.newOutputStream(client));
+
+            int length = in.readInt();
+            if (length < 0 || length > MAX_REQUEST_BYTES) {
+                refuse(wire, "Request of " + length + " bytes refused (the most is "
+                    + MAX_REQUEST_BYTES + ", -Dlox.daemon.maxRequestBytes).");
+                return;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            String source = new String(bytes, StandardCharsets.UTF_8);
+
+            //the handle on this request's run: the -Dlox.budget.* limits (if any), counted
+            //from now, and the way to stop it if the client goes away
+            Budget limits = Budget.fromSystemProperties();
+            Budget budget = (limits != null) ? limits : new Budget(0, 0, 0);
+            Thread.ofVirtual().start(() -> cancelOnDisconnect(client, budget));
+
+            PrintStream out = new PrintStream(new FrameOutputStream(wire, STDOUT), true, StandardCharsets.UTF_8);
+            PrintStream err = new PrintStream(new FrameOutputStream(wire, STDERR), true, StandardCharsets.UTF_8);
+            Session session = new Session(out, err);
+
+            Lox.setSession(session);
+            try {
+                execute(source, session, budget);
+            } finally {
+                Lox.clearSession();
+            }
+
+            out.flush();
+            err.flush();
+            synchronized (wire) {
+                wire.writeByte(EXIT);
+                wire.writeInt(session.exitCode());
+                wire.flush();
+            }
+        } catch (IOException error) {
+            //the client went away - nothing more we can do for it
+        }
+    }
+
+    //answer a request that can't be run with a usage error, without reading any more of it
+    private static void refuse(DataOutputStream wire, String message) throws IOException {
+        byte[] bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        wire.writeByte(STDERR);
+        wire.writeInt(bytes.length);
+        wire.write(bytes);
+        wire.writeByte(EXIT);
+        wire.writeInt(64);
+        wire.flush();
+    }
+
+    //the client sends nothing after its script, so all there is left to read is the end of
+    //the stream when it disconnects (killed with Ctrl-C, say) - then stop its script
+    private static void cancelOnDisconnect(SocketChannel client, Budget budget) {
+        ByteBuffer ignored = ByteBuffer.allocate(64);
+        try {
+            while (client.read(ignored) >= 0) ignored.clear();
+        } catch (IOException error) {
+            //the connection broke, or serve() closed it once the request was done
+        }
+        budget.cancel();
+    }
+
+    //the equivalent of Lox.run(), with the parse step cached
+    //'budget' is the request's limits (null for none)
+    private static void execute(String source, Session session, Budget budget) {
+        Metrics.global.scriptsRun.increment();
+        String key = hash(source);
+        List<Stmt> statements = parsed.get(key);
+
+        if (statements == null) {
+            Scanner scanner = new Scanner(source);
+            List<Token> tokens = scanner.scanTokens();
+            try {
+                statements = new Parser(tokens).parse();
+            } catch (RuntimeException error) {
+                //a ParseError escapes parse() once it has been reported
+                if (!session.hadError) throw error;
+            }
+
+            //stop if there was a syntax error
+            if (session.hadError) {
+                return;
+            }
+            parsed.put(key, statements);
+        }
+
+        //interpreters are cheap - a fresh one per request keeps runs isolated
+        Interpreter interpreter = new Interpreter(null, session.out);
+        interpreter.setBudget(budget);
+        //wait for the scheduler to run it - parking this virtual thread until then
+        scheduler.submit(interpreter, statements, 1).join();
+    }
+
+    private static String hash(String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(source.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException error) {
+            //every JVM is required to support SHA-256
+            throw new AssertionError(error);
+        }
+    }
+
+    //sends everything written to it as frames on the given stream
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream wire;
+        private final byte stream;
+
+        FrameOutputStream(DataOutputStream wire, byte stream) {
+            this.wire = wire;
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) return;
+            //stdout and stderr share one socket, so whole frames must not interleave
+            synchronized (wire) {
+                wire.writeByte(stream);
+                wire.writeInt(length);
+                wire.write(bytes, offset, length);
+                wire.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Process-wide counters for everything the interpreter does, so a long-running
+ * host can watch it from outside over JMX
+ *
+ * Recording is always on - it's just LongAdder increments, which stay cheap under
+ * concurrent load - but the MBean is only registered when asked for, because
+ * starting the platform MBean server would slow down every short command line run
+ */
+class Metrics implements MetricsMBean {
+
+    static final Metrics global = new Metrics();
+
+    static final String OBJECT_NAME = "com.craftinginterpreters.lox:type=Metrics";
+
+    final LongAdder scriptsRun = new LongAdder();
+    final LongAdder tokensScanned = new LongAdder();
+    final LongAdder statementsParsed = new LongAdder();
+    final LongAdder statementsExecuted = new LongAdder();
+    final LongAdder syntaxErrors = new LongAdder();
+    final LongAdder runtimeErrors = new LongAdder();
+    final LongAdder cacheHits = new LongAdder();
+    final LongAdder cacheMisses = new LongAdder();
+    final LongAdder cacheEvictions = new LongAdder();
+
+    final LatencyHistogram scanLatency = new LatencyHistogram();
+    final LatencyHistogram parseLatency = new LatencyHistogram();
+    final LatencyHistogram interpretLatency = new LatencyHistogram();
+    final LatencyHistogram scheduleLatency = new LatencyHistogram();
+
+    private Metrics() {}
+
+    //make the global metrics visible over JMX - safe to call more than once
+    static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(global, name);
+            }
+        } catch (JMException error) {
+            throw new IllegalStateException("Could not register the Lox metrics MBean.", error);
+        }
+    }
+
+    @Override public long getScriptsRun()         { return scriptsRun.sum(); }
+    @Override public long getTokensScanned()      { return tokensScanned.sum(); }
+    @Override public long getStatementsParsed()   { return statementsParsed.sum(); }
+    @Override public long getStatementsExecuted() { return statementsExecuted.sum(); }
+    @Override public long getSyntaxErrors()       { return syntaxErrors.sum(); }
+    @Override public long getRuntimeErrors()      { return runtimeErrors.sum(); }
+
+    @Override public long getCacheHits()          { return cacheHits.sum(); }
+    @Override public long getCacheMisses()        { return cacheMisses.sum(); }
+    @Override public long getCacheEvictions()     { return cacheEvictions.sum(); }
+    @Override public long getCacheEntries()       { return ResultCache.global == null ? 0 : ResultCache.global.size(); }
+    @Override public long getCacheWeight()        { return ResultCache.global == null ? 0 : ResultCache.global.weight(); }
+
+    @Override public long getScanCount()          { return scanLatency.count(); }
+    @Override public double getScanMeanMicros()   { return scanLatency.meanMicros(); }
+    @Override public double getScanP50Micros()    { return scanLatency.percentileMicros(50); }
+    @Override public double getScanP99Micros()    { return scanLatency.percentileMicros(99); }
+    @Override public long[] getScanHistogram()    { return scanLatency.bucketCounts(); }
+
+    @Override public long getParseCount()         { return parseLatency.count(); }
+    @Override public double getParseMeanMicros()  { return parseLatency.meanMicros(); }
+    @Override public double getParseP50Micros()   { return parseLatency.percentileMicros(50); }
+    @Override public double getParseP99Micros()   { return parseLatency.percentileMicros(99); }
+    @Override public long[] getParseHistogram()   { return parseLatency.bucketCounts(); }
+
+    @Override public long getInterpretCount()        { return interpretLatency.count(); }
+    @Override public double getInterpretMeanMicros() { return interpretLatency.meanMicros(); }
+    @Override public double getInterpretP50Micros()  { return interpretLatency.percentileMicros(50); }
+    @Override public double getInterpretP99Micros()  { return interpretLatency.percentileMicros(99); }
+    @Override public long[] getInterpretHistogram()  { return interpretLatency.bucketCounts(); }
+
+    @Override public long getScheduleCount()         { return scheduleLatency.count(); }
+    @Override public double getScheduleMeanMicros()  { return scheduleLatency.meanMicros(); }
+    @Override public double getScheduleP50Micros()   { return scheduleLatency.percentileMicros(50); }
+    @Override public double getScheduleP99Micros()   { return scheduleLatency.percentileMicros(99); }
+    @Override public long[] getScheduleHistogram()   { return scheduleLatency.bucketCounts(); }
+
+    @Override
+    public void reset() {
+        scriptsRun.reset();
+        tokensScanned.reset();
+        statementsParsed.reset();
+        statementsExecuted.reset();
+        syntaxErrors.reset();
+        runtimeErrors.reset();
+        cacheHits.reset();
+        cacheMisses.reset();
+        cacheEvictions.reset();
+        scanLatency.reset();
+        parseLatency.reset();
+        interpretLatency.reset();
+        scheduleLatency.reset();
+    }
+}
@@ -0,0 +1,52 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * What Metrics shows over JMX (as com.craftinginterpreters.lox:type=Metrics)
+ *
+ * Latencies are per call of Scanner.scanTokens(), Parser.parse() and
+ * Interpreter.interpret(); percentiles are the upper bound of a power-of-2 bucket.
+ * Schedule latency is how long each wait for one of the Scheduler's carriers took
+ *
+ * The cache figures are for the -Dlox.cache result cache (all zero when it's off) -
+ * entries and weight are its current size, so reset() leaves them alone
+ */
+public interface MetricsMBean {
+    long getScriptsRun();
+    long getTokensScanned();
+    long getStatementsParsed();
+    long getStatementsExecuted();
+    long getSyntaxErrors();
+    long getRuntimeErrors();
+
+    long getCacheHits();
+    long getCacheMisses();
+    long getCacheEvictions();
+    long getCacheEntries();
+    long getCacheWeight();
+
+    long getScanCount();
+    double getScanMeanMicros();
+    double getScanP50Micros();
+    double getScanP99Micros();
+    long[] getScanHistogram();
+
+    long getParseCount();
+    double getParseMeanMicros();
+    double getParseP50Micros();
+    double getParseP99Micros();
+    long[] getParseHistogram();
+
+    long getInterpretCount();
+    double getInterpretMeanMicros();
+    double getInterpretP50Micros();
+    double getInterpretP99Micros();
+    long[] getInterpretHistogram();
+
+    long getScheduleCount();
+    double getScheduleMeanMicros();
+    double getScheduleP50Micros();
+    double getScheduleP99Micros();
+    long[] getScheduleHistogram();
+
+    void reset();
+}
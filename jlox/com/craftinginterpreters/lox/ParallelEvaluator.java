@@ -0,0 +1,257 @@
+package com.craftinginterpreters.lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Evaluates very large expressions on a fork-join pool
+ *
+ * Expressions can't have side effects yet, so the two operands of a binary
+ * expression can be evaluated at the same time. After parsing, prepare() measures
+ * every expression once; at runtime a binary node whose operands are both big
+ * enough forks its right operand and evaluates the left one itself
+ *
+ * Errors come out exactly as in serial evaluation: if the left operand fails,
+ * that error wins whatever happened on the right, and the operator's own check
+ * only runs once both operands succeeded
+ *
+ * Note that a long chain like 1 + 2 + 3 + ... is a left-leaning tree with a single
+ * literal on every right-hand side, so there is nothing to split - only balanced
+ * trees gain anything (reassociating would change floating point results). Such a
+ * chain can be far deeper than the Java stack, so measuring a tree and walking down
+ * to the nodes worth splitting both use explicit stacks
+ */
+class ParallelEvaluator {
+
+    //statements smaller than this (in nodes) are evaluated serially as usual
+    static final int THRESHOLD = Integer.getInteger("lox.parallel.threshold", 4096);
+    //subtrees smaller than this aren't worth a task of their own
+    static final int MIN_TASK = Integer.getInteger("lox.parallel.minTask", 512);
+
+    private final ForkJoinPool pool;
+
+    //sizes of every subtree with at least MIN_TASK nodes - anything missing is small
+    private final Map<Expr, Integer> sizes = new IdentityHashMap<>();
+
+    //each worker evaluates its small subtrees with its own (print-less) interpreter
+    private static final PrintStream nowhere = new PrintStream(OutputStream.nullOutputStream());
+    private final ThreadLocal<Interpreter> serial =
+        ThreadLocal.withInitial(() -> new Interpreter(null, nowhere));
+
+    //marks a binary node in evaluateSplit()'s path whose left operand is still to come back
+    private static final Object WENT_LEFT = new Object();
+
+    ParallelEvaluator(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    //-Dlox.parallel=true turns this on, using the common pool
+    static ParallelEvaluator fromSystemProperty() {
+        if (!Boolean.getBoolean("lox.parallel")) return null;
+        return new ParallelEvaluator(ForkJoinPool.commonPool());
+    }
+
+    //measure every statement's expression - call once after parsing, before interpreting
+    void prepare(List<Stmt> statements) {
+        sizes.clear();
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Expression) {
+                measure(((Stmt.Expression)statement).expression);
+            } else if (statement instanceof Stmt.Print) {
+                measure(((Stmt.Print)statement).expression);
+            }
+        }
+    }
+
+    //size every subtree bottom-up: a node is expanded once its operands have been
+    //pushed, and finished once their sizes are on the 'finished' stack
+    private void measure(Expr root) {
+        List<Expr> frames = new ArrayList<>();
+        List<Boolean> expanded = new ArrayList<>();
+        int[] finished = new int[16];
+        int count = 0;
+
+        frames.add(root);
+        expanded.add(false);
+        while (!frames.isEmpty()) {
+            int top = frames.size() - 1;
+            Expr expr = frames.get(top);
+
+            int operands = 0;
+            if (expr instanceof Expr.Binary) operands = 2;
+            else if (expr instanceof Expr.Unary || expr instanceof Expr.Grouping) operands = 1;
+
+            if (!expanded.get(top) && operands > 0) {
+                expanded.set(top, true);
+                if (expr instanceof Expr.Binary) {
+                    frames.add(((Expr.Binary)expr).left);
+                    frames.add(((Expr.Binary)expr).right);
+                    expanded.add(false);
+                    expanded.add(false);
+                } else {
+                    frames.add(expr instanceof Expr.Unary
+                        ? ((Expr.Unary)expr).right : ((Expr.Grouping)expr).expression);
+                    expanded.add(false);
+                }
+                continue;
+            }
+
+            frames.remove(top);
+            expanded.remove(top);
+            int size = 1;
+            for (int i = 0; i < operands; i++) size += finished[--count];
+
+            if (size >= MIN_TASK) sizes.put(expr, size);
+            if (count == finished.length) finished = Arrays.copyOf(finished, count * 2);
+            finished[count++] = size;
+        }
+    }
+
+    //is this expression worth evaluating in parallel?
+    boolean isLarge(Expr expr) {
+        Integer size = sizes.get(expr);
+        return size != null && size >= THRESHOLD;
+    }
+
+    //several interpreters may be evaluating at once (see ParallelStatements), so the
+    //caller's inputs and budget travel with the tasks rather than living here
+    Object evaluate(Expr expr, Map<String, Object> inputs, Budget budget) {
+        Task task = pool.invoke(new Task(expr, inputs, budget));
+        if (task.error != null) throw task.error;
+        return task.value;
+    }
+
+    //this thread's interpreter, with the inputs of the interpreter that called us and
+    //the task's share of its budget
+    private Interpreter serial(Task task) {
+        Interpreter interpreter = serial.get();
+        if (interpreter.inputs() != task.inputs) interpreter.setInputs(task.inputs);
+        interpreter.setBudget(task.view);
+        return interpreter;
+    }
+
+    //runs on a pool thread
+    //walks down through the nodes with only one large operand, to the first node worth
+    //splitting (or small enough to evaluate serially), then applies the operators it
+    //passed on the way back up - in serial order, so errors come out the same
+    private Object evaluateSplit(Expr expr, Task task) {
+        //the unary and binary nodes passed on the way down, and for each binary the
+        //left operand's value if we went down the right (WENT_LEFT if we went down the left)
+        List<Expr> path = new ArrayList<>();
+        List<Object> lefts = new ArrayList<>();
+
+        Object value;
+        while (true) {
+            if (expr instanceof Expr.Grouping) {
+                expr = ((Expr.Grouping)expr).expression;
+            } else if (!sizes.containsKey(expr) || !(expr instanceof Expr.Binary || expr instanceof Expr.Unary)) {
+                value = serial(task).evaluate(expr);
+                break;
+            } else if (expr instanceof Expr.Unary) {
+                path.add(expr);
+                lefts.add(null);
+                expr = ((Expr.Unary)expr).right;
+            } else {
+                Expr.Binary binary = (Expr.Binary)expr;
+                boolean largeLeft = sizes.containsKey(binary.left);
+                boolean largeRight = sizes.containsKey(binary.right);
+                if (largeLeft && largeRight) {
+                    value = split(binary, task);
+                    break;
+                }
+                if (!largeLeft && !largeRight) {
+                    value = serial(task).evaluate(expr);
+                    break;
+                }
+
+                //one side is small - splitting wouldn't pay for the task
+                path.add(expr);
+                if (largeLeft) {
+                    lefts.add(WENT_LEFT);
+                    expr = binary.left;
+                } else {
+                    lefts.add(serial(task).evaluate(binary.left));
+                    expr = binary.right;
+                }
+            }
+        }
+
+        for (int i = path.size() - 1; i >= 0; i--) {
+            Expr node = path.get(i);
+            if (node instanceof Expr.Unary) {
+                value = serial(task).unary(((Expr.Unary)node).operator, value);
+                continue;
+            }
+
+            Expr.Binary binary = (Expr.Binary)node;
+            Object left = lefts.get(i);
+            if (left == WENT_LEFT) {
+                value = serial(task).binary(binary.operator, value, serial(task).evaluate(binary.right));
+            } else {
+                value = serial(task).binary(binary.operator, left, value);
+            }
+        }
+        return value;
+    }
+
+    //evaluate a binary node whose operands are both large, forking the right one
+    private Object split(Expr.Binary binary, Task task) {
+        Task right = new Task(binary.right, task.inputs, task.budget);
+        right.fork();
+
+        Object left;
+        try {
+            left = evaluateSplit(binary.left, task);
+        } catch (RuntimeError error) {
+            //the left operand fails first in serial order, whatever the right one does
+            right.cancel(false);
+            throw error;
+        }
+
+        right.join();
+        if (right.error != null) throw right.error;
+        return serial(task).binary(binary.operator, left, right.value);
+    }
+
+    //evaluates one subtree, keeping a RuntimeError as a result rather than letting
+    //the pool rethrow (and possibly rewrap) it, so the caller sees the original object
+    private class Task extends RecursiveTask<Task> {
+        private static final long serialVersionUID = 1L;
+
+        //(tasks are never serialized, so nothing they hold has to be)
+        private final transient Expr expr;
+        private final transient Map<String, Object> inputs;
+        //the calling interpreter's budget, and this task's view of it (null for no limits)
+        private final transient Budget budget;
+        private transient Budget view;
+        private transient Object value;
+        private RuntimeError error;
+
+        Task(Expr expr, Map<String, Object> inputs, Budget budget) {
+            this.expr = expr;
+            this.inputs = inputs;
+            this.budget = budget;
+        }
+
+        @Override
+        protected Task compute() {
+            view = (budget == null) ? null : budget.forThread();
+            try {
+                value = evaluateSplit(expr, this);
+            } catch (RuntimeError runtimeError) {
+                error = runtimeError;
+            } finally {
+                if (view != null) view.release();
+                serial.get().setBudget(null);
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Runs top-level statements at the same time on a work-stealing pool
+ *
+ * Statements can't affect each other yet - the only things they can do are print
+ * and fail - so they can run in any order as long as what they print is shown in
+ * program order. Each statement prints into its own buffer, and the calling thread
+ * commits the buffers one by one, stopping at the first statement (in program
+ * order) that failed. Statements after a failed one are skipped if they haven't started,
+ * and only committed statements are counted as executed, so the output and the metrics
+ * are exactly what Interpreter.interpret() would give
+ *
+ * Every worker's interpreter gets the same settings as the main one would have had:
+ * the hash-conser's shared nodes, the ParallelEvaluator (which forks into the same
+ * pool) and its own view of the run's Budget. A Tracer follows a single thread, so
+ * Lox refuses to combine the two
+ */
+class ParallelStatements {
+
+    //how many statements may run ahead of the one being committed - bounds buffered output
+    private static final int WINDOW = Integer.getInteger("lox.concurrent.window", 1024);
+
+    private final ForkJoinPool pool;
+    private final PrintStream out;
+    //null to evaluate every statement serially
+    private final ParallelEvaluator parallel;
+    private final Set<Expr> shared;
+    //null for no limits
+    private final Budget budget;
+
+    //each pool thread runs statements with its own interpreter, printing into its own buffer
+    private final ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+
+    ParallelStatements(ForkJoinPool pool, PrintStream out, ParallelEvaluator parallel,
+            Set<Expr> shared, Budget budget) {
+        this.pool = pool;
+        this.out = out;
+        this.parallel = parallel;
+        this.shared = shared;
+        this.budget = budget;
+    }
+
+    void interpret(List<Stmt> statements) {
+        long startTime = System.nanoTime();
+        Deque<StatementTask> window = new ArrayDeque<>();
+        Iterator<Stmt> next = statements.iterator();
+        int submitted = 0;
+        //lowest index of a statement known to have failed - the ones after it needn't run
+        AtomicInteger firstFailure = new AtomicInteger(Integer.MAX_VALUE);
+
+        try {
+            while (true) {
+                //keep the pool busy with the statements after the one we're waiting for
+                while (window.size() < WINDOW && next.hasNext()) {
+                    StatementTask task = new StatementTask(next.next(), submitted++, firstFailure);
+                    pool.execute(task);
+                    window.add(task);
+                }
+
+                StatementTask task = window.poll();
+                if (task == null) break;
+
+                task.join();
+                if (task.error != null) {
+                    //first failure in program order - everything after it is thrown away
+                    Lox.runtimeError(task.error);
+                    return;
+                }
+                //only now is it one of the statements a serial run would have executed
+                Metrics.global.statementsExecuted.increment();
+                out.print(task.output);
+            }
+        } finally {
+            for (StatementTask task : window) {
+                task.cancel(false);
+            }
+            Metrics.global.interpretLatency.record(System.nanoTime() - startTime);
+        }
+    }
+
+    private class Worker {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        final PrintStream printer = new PrintStream(buffer, false, StandardCharsets.UTF_8);
+        final Interpreter interpreter = new Interpreter(null, printer, parallel);
+        //set while a statement is running on it
+        boolean busy = false;
+
+        Worker() {
+            interpreter.setShared(shared);
+            if (budget != null) interpreter.setBudget(budget.forThread());
+        }
+    }
+
+    //one statement, and what it printed or the error it stopped with
+    private class StatementTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Stmt statement;
+        //where the statement is in the program
+        private final int index;
+        private final transient AtomicInteger firstFailure;
+        private String output;
+        private RuntimeError error;
+
+        StatementTask(Stmt statement, int index, AtomicInteger firstFailure) {
+            this.statement = statement;
+            this.index = index;
+            this.firstFailure = firstFailure;
+        }
+
+        @Override
+        protected void compute() {
+            //an earlier statement failed, so this one's output would never be shown
+            if (index > firstFailure.get()) {
+                output = "";
+                return;
+            }
+
+            Worker worker = workers.get();
+            //while a split statement waits for its subtasks the thread may pick up another
+            //statement, which mustn't run on the interpreter that's part way through
+            if (worker.busy) worker = new Worker();
+            worker.busy = true;
+            try {
+                worker.interpreter.executeUncounted(statement);
+            } catch (RuntimeError runtimeError) {
+                error = runtimeError;
+                firstFailure.accumulateAndGet(index, Math::min);
+            } finally {
+                //give back the steps this thread was holding, for whoever runs next
+                if (budget != null) worker.interpreter.budget().release();
+                worker.busy = false;
+                worker.printer.flush();
+                output = worker.buffer.toString(StandardCharsets.UTF_8);
+                worker.buffer.reset();
+            }
+        }
+    }
+}
@@ -1,36 +1,146 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 import static com.craftinginterpreters.lox.TokenType.*;
 
 class Parser {
 
-    private static class ParseError extends RuntimeException {}
+    //a syntax error at 'token' - like RuntimeError it has no Java stack trace, as it's
+    //thrown for mistakes in the script, not in the parser
+    static class ParseError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final transient Token token;
+
+        ParseError(Token token, String message) {
+            super(message, null, false, false);
+            this.token = token;
+        }
+    }
     
     //the list of input tokens
-    private final List<Token> tokens;
+    private List<Token> tokens;
+    //names the caller will bind as inputs - a bare identifier must be one of these or a native
+    private final Set<String> inputs;
+    //where syntax errors go instead of being reported, in parse(errors) - null otherwise
+    private List<ParseError> errors = null;
     //points to the next token to be parsed
     private int current = 0;
 
+    //expression()'s stacks, reused for every expression
+    private final List<Expr> operands = new ArrayList<>();
+    //operator tokens waiting for their operands (null for an open parenthesis)
+    private final List<Token> operators = new ArrayList<>();
+    //how tightly each waiting operator binds
+    private final List<Integer> precedences = new ArrayList<>();
+    //calls whose argument lists are still open, innermost last: what's being called,
+    //and the arguments parsed so far
+    private final List<Expr> callees = new ArrayList<>();
+    private final List<List<Expr>> callArguments = new ArrayList<>();
+
+    //open calls and parentheses bind loosest (nothing gets applied past one),
+    //binary operators go from 1 (equality) to 4 (factor) and prefix operators bind tightest
+    private static final int CALL = -1;
+    private static final int OPEN_PAREN = 0;
+    private static final int PREFIX = 5;
+
+    //a script has no inputs, so the only names it can use are the natives - any other
+    //identifier is a syntax error
     Parser(List<Token> tokens) {
+        this(tokens, Collections.emptySet());
+    }
+
+    //for expressions over named inputs (see Interpreter.define() and BatchEvaluator)
+    Parser(List<Token> tokens, Set<String> inputs) {
         this.tokens = tokens;
+        this.inputs = inputs;
+    }
+
+    //start again on another file's tokens, keeping the expression stacks' capacity
+    void reset(List<Token> tokens) {
+        this.tokens = tokens;
+        current = 0;
     }
 
     List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
-        while (!isAtEnd()) {
-            statements.add(statement());
+        parse(statements::add);
+        return statements;
+    }
+
+    //parse without throwing or reporting anything: every syntax error is added to 'errors',
+    //and parsing carries on from the start of the next statement, so one pass finds them all
+    //returns the statements that parsed cleanly
+    List<Stmt> parse(List<ParseError> errors) {
+        List<Stmt> statements = new ArrayList<>();
+        long startTime = System.nanoTime();
+        long parsed = 0;
+        this.errors = errors;
+        try {
+            while (!isAtEnd()) {
+                int errorsBefore = errors.size();
+                try {
+                    Stmt statement = statement();
+                    //an error that doesn't stop the parse (too many arguments) still spoils the statement
+                    if (errors.size() == errorsBefore) {
+                        statements.add(statement);
+                        parsed++;
+                    }
+                } catch (ParseError error) {
+                    synchronise();
+                }
+            }
+        } finally {
+            this.errors = null;
+            Metrics.global.statementsParsed.add(parsed);
+            Metrics.global.parseLatency.record(System.nanoTime() - startTime);
         }
         return statements;
     }
 
+    //hand each statement to 'sink' as soon as it has been parsed
+    void parse(Consumer<Stmt> sink) {
+        long startTime = System.nanoTime();
+        long parsed = 0;
+        try {
+            while (!isAtEnd()) {
+                sink.accept(statement());
+                parsed++;
+            }
+        } finally {
+            Metrics.global.statementsParsed.add(parsed);
+            Metrics.global.parseLatency.record(System.nanoTime() - startTime);
+        }
+    }
+
     private Stmt statement() {
+        //a previous statement may have stopped half way through an expression with a ParseError
+        operands.clear();
+        operators.clear();
+        precedences.clear();
+        callees.clear();
+        callArguments.clear();
+
         if (match(PRINT)) return printStatement();
+        if (match(BENCH)) return benchStatement();
 
         return expressionStatement();
     }
 
+    //bench → "bench" expression "," expression ";"
+    private Stmt benchStatement() {
+        Token keyword = previous();
+        Expr iterations = expression();
+        consume(COMMA, "Expect ',' after iteration count.");
+        Expr expr = expression();
+        consume(SEMICOLON, "Expect ';' after expression.");
+        return new Stmt.Bench(keyword, iterations, expr);
+    }
+
     private Stmt printStatement() {
         Expr value = expression();
         consume(SEMICOLON, "Expect ';' after value.");
@@ -44,77 +154,148 @@ class Parser {
     }
 
     //expression → equality
-    private Expr expression() {
-        return equality();
-    }
-
     //equality → comparison ( ( "!=" | "==" ) comparison )*
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
     //comparison → term ( ( ">" | ">=" | "<" | "<=" ) term )*
-    private Expr comparison() {
-        Expr expr = term();
-
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+    //term → factor ( ( "-" | "+" ) factor )*
+    //factor → unary ( ( "/" | "*" ) unary )*
+    //unary → ( "!" | "-" ) unary | primary
+    //call → primary ( "(" arguments? ")" )*
+    //arguments → expression ( "," expression )*
+    //primary → NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")" | IDENTIFIER
+    //(where IDENTIFIER is an input or a native)
+    //
+    //the grammar above is parsed with explicit operator and operand stacks rather than one
+    //recursive call per level, so deep nesting like ((((1)))), !!!!x or f(f(f(1))) is
+    //limited only by the heap - every binary operator is left-associative, so an operator waiting on the
+    //stack is applied as soon as one of the same or lower precedence comes along
+    private Expr expression() {
+        while (true) {
+            //expecting an operand: any number of prefix operators and open parentheses first
+            while (true) {
+                if (match(BANG, MINUS)) {
+                    pushOperator(previous(), PREFIX);
+                } else if (match(LEFT_PAREN)) {
+                    pushOperator(null, OPEN_PAREN);
+                } else {
+                    break;
+                }
+            }
+            operands.add(primary());
+            //a call with arguments: the first of them is the next operand
+            if (openCalls()) continue;
+
+            //then a binary operator, or the end of a group, of an argument or of the expression
+            while (true) {
+                int precedence = binaryPrecedence(peek().type);
+                if (precedence != OPEN_PAREN) {
+                    reduce(precedence);
+                    pushOperator(advance(), precedence);
+                    break;
+                }
+
+                reduce(OPEN_PAREN);
+                if (operators.isEmpty()) {
+                    return operands.remove(operands.size() - 1);
+                }
+
+                //only an open parenthesis or an open call is left on top of the stack
+                int top = operators.size() - 1;
+                int last = operands.size() - 1;
+                if (precedences.get(top) == OPEN_PAREN) {
+                    consume(RIGHT_PAREN, "Expect ')' after expression.");
+                    operands.set(last, new Expr.Grouping(operands.get(last)));
+                } else {
+                    List<Expr> arguments = callArguments.get(callArguments.size() - 1);
+                    arguments.add(operands.remove(last));
+                    if (match(COMMA)) {
+                        if (arguments.size() >= 255) {
+                            //report it but keep parsing - the parser isn't confused
+                            error(peek(), "Can't have more than 255 arguments.");
+                        }
+                        //the call stays open for its next argument
+                        break;
+                    }
+                    Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+                    callArguments.remove(callArguments.size() - 1);
+                    operands.add(new Expr.Call(callees.remove(callees.size() - 1), paren, arguments));
+                }
+                operators.remove(top);
+                precedences.remove(top);
+                //a call on what was just closed, like (f)() or f(1)(2)
+                if (openCalls()) break;
+            }
         }
-
-        return expr;
     }
 
-    //term → factor ( ( "-" | "+" ) factor )*
-    private Expr term() {
-        Expr expr = factor();
-
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
+    //apply any calls that follow the operand on top of the stack - a call with no arguments
+    //is made there and then, while one with arguments is left open on the stacks (and
+    //true returned) so that its arguments are parsed like any other operand
+    private boolean openCalls() {
+        while (match(LEFT_PAREN)) {
+            int last = operands.size() - 1;
+            if (match(RIGHT_PAREN)) {
+                operands.set(last, new Expr.Call(operands.get(last), previous(), new ArrayList<>()));
+            } else {
+                callees.add(operands.remove(last));
+                callArguments.add(new ArrayList<>());
+                pushOperator(null, CALL);
+                return true;
+            }
         }
-
-        return expr;
-
+        return false;
     }
 
-    //factor → unary ( ( "/" | "*" ) unary )*
-    private Expr factor() {
-        Expr expr = unary();
+    private void pushOperator(Token operator, int precedence) {
+        operators.add(operator);
+        precedences.add(precedence);
+    }
 
-        while (match(SLASH, STAR)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+    //how tightly a binary operator binds - OPEN_PAREN if the token isn't one
+    private static int binaryPrecedence(TokenType type) {
+        switch (type) {
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                return 1;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return 2;
+            case MINUS:
+            case PLUS:
+                return 3;
+            case SLASH:
+            case STAR:
+                return 4;
+            default:
+                return OPEN_PAREN;
         }
-
-        return expr;
-
     }
 
-    //unary → ( "!" | "-" ) unary | primary
-    private Expr unary() {
-        if (match(BANG, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+    //apply the operators on top of the stack that bind at least as tightly as 'precedence',
+    //stopping at an open parenthesis or at 'base'
+    private void reduce(int precedence) {
+        while (!operators.isEmpty()) {
+            int top = operators.size() - 1;
+            int bound = precedences.get(top);
+            if (bound <= OPEN_PAREN || bound < precedence) return;
+
+            Token operator = operators.remove(top);
+            precedences.remove(top);
+            int last = operands.size() - 1;
+            if (bound == PREFIX) {
+                operands.set(last, new Expr.Unary(operator, operands.get(last)));
+            } else {
+                Expr right = operands.remove(last);
+                operands.set(last - 1, new Expr.Binary(operands.get(last - 1), operator, right));
+            }
         }
-
-        return primary();
-
     }
 
-    //primary → NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")"
+    //call → primary ( "(" arguments? ")" )*
+    //(arguments recurse into expression(), so only deeply nested calls use the Java stack)
+    //primary → NUMBER | STRING | "true" | "false" | "nil" | IDENTIFIER
+    //(parentheses are handled by expression())
     private Expr primary() {
         if (match(FALSE)) return new Expr.Literal(false);
         if (match(TRUE))  return new Expr.Literal(true);
@@ -124,10 +305,9 @@ class Parser {
             return new Expr.Literal(previous().literal);
         }
 
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
+        if (check(IDENTIFIER) && (inputs.contains(peek().lexeme) || Interpreter.isNative(peek().lexeme))) {
+            advance();
+            return new Expr.Variable(previous());
         }
 
         throw error(peek(), "Expect expression.");
@@ -191,8 +371,14 @@ class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
-        return new ParseError();
+        ParseError error = new ParseError(token, message);
+        if (errors != null) {
+            errors.add(error);
+            Metrics.global.syntaxErrors.increment();
+        } else {
+            Lox.error(token, message);
+        }
+        return error;
     }
 
     //try to synchronise the state of the parser
@@ -214,6 +400,7 @@ class Parser {
                 case IF:
                 case WHILE:
                 case PRINT:
+                case BENCH:
                 case RETURN:
                     return;
             }
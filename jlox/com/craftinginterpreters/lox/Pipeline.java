@@ -0,0 +1,326 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Runs the scanner, parser and interpreter at the same time on three threads,
+ * connected by bounded ring buffers of token and statement batches
+ *
+ *   Scanner --[List<Token>]--> Parser --[List<Stmt>]--> Interpreter
+ *
+ * The result must look exactly like Lox.run(): a syntax error anywhere in the file
+ * means nothing is executed, scan errors are reported before parse errors, and so on.
+ * Scan errors always come first, so the scanner writes straight to the real stderr.
+ * The parser stops at its first error, which is held until the scanner is done. The
+ * interpreter's output is held until the parser reaches the end of the file without a
+ * syntax error, then written out, and from there on it goes straight through. Only
+ * lox.pipeline.heldOutput bytes are ever held: past that the interpreter stops running
+ * statements and just collects them until the parse is known to be clean
+ */
+class Pipeline {
+
+    private static final int TOKEN_BATCH = 1024;
+    private static final int STMT_BATCH = 64;
+    //batches in flight between two stages - this is what bounds memory
+    private static final int QUEUE_BATCHES = 16;
+    //interpreter output held back while the rest of the file might still have a syntax error
+    private static final int HELD_OUTPUT = Integer.getInteger("lox.pipeline.heldOutput", 1 << 20);
+
+    private final SpscRingBuffer<List<Token>> tokenQueue = new SpscRingBuffer<>(QUEUE_BATCHES);
+    private final SpscRingBuffer<List<Stmt>> stmtQueue = new SpscRingBuffer<>(QUEUE_BATCHES);
+
+    //first unexpected exception thrown by any stage (not Lox errors - those are reported normally)
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    private final String source;
+    private final Tracer tracer;
+    private final boolean hashCons;
+    //null for no limits
+    private final Budget budget;
+
+    //statements parsed since the last batch was handed on (parser thread only)
+    private List<Stmt> pending = new ArrayList<>(STMT_BATCH);
+
+    private final Session target;
+    private final Session scanSession;
+    private final ByteArrayOutputStream parseErrors = new ByteArrayOutputStream();
+    private final Session parseSession;
+    private final Gate interpretOut;
+    private final Gate interpretErr;
+    private final Session interpretSession;
+
+    private Pipeline(String source, Tracer tracer, boolean hashCons, Budget budget) {
+        this.source = source;
+        this.tracer = tracer;
+        this.hashCons = hashCons;
+        this.budget = budget;
+
+        target = Lox.session();
+        scanSession = new Session(target.out, target.err);
+        parseSession = new Session(target.out, new PrintStream(parseErrors, true, target.err.charset()));
+        interpretOut = new Gate(target.out);
+        interpretErr = new Gate(target.err);
+        interpretSession = new Session(
+            new PrintStream(interpretOut, true, target.out.charset()),
+            new PrintStream(interpretErr, true, target.err.charset()));
+    }
+
+    //pipelined equivalent of Lox.run() - reports errors into the current thread's session
+    static void run(String source, Tracer tracer, boolean hashCons, Budget budget) {
+        new Pipeline(source, tracer, hashCons, budget).run();
+    }
+
+    private void run() {
+        Thread scanner = stage("lox-scanner", scanSession, this::scan);
+        Thread parser = stage("lox-parser", parseSession, this::parse);
+        Thread interpreter = stage("lox-interpreter", interpretSession, this::interpret);
+
+        scanner.start();
+        parser.start();
+        interpreter.start();
+
+        boolean interrupted = false;
+        for (Thread thread : List.of(scanner, parser, interpreter)) {
+            while (true) {
+                try {
+                    thread.join();
+                    break;
+                } catch (InterruptedException error) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        Throwable error = failure.get();
+        if (error instanceof RuntimeException) throw (RuntimeException)error;
+        if (error instanceof Error) throw (Error)error;
+        if (error != null) throw new RuntimeException(error);
+
+        if (scanSession.hadError || parseSession.hadError) {
+            target.hadError = true;
+            return;
+        }
+        target.hadRuntimeError |= interpretSession.hadRuntimeError;
+    }
+
+    private void scan() {
+        try {
+            new Scanner(source).scanTokens(batch -> {
+                if (!tokenQueue.put(batch)) throw new Cancelled();
+            }, TOKEN_BATCH);
+        } finally {
+            tokenQueue.close();
+        }
+    }
+
+    private void parse() {
+        try {
+            Parser parser = new Parser(new TokenStream(tokenQueue));
+            try {
+                parser.parse(statement -> {
+                    pending.add(statement);
+                    if (pending.size() >= STMT_BATCH) {
+                        if (!stmtQueue.put(pending)) throw new Cancelled();
+                        pending = new ArrayList<>(STMT_BATCH);
+                    }
+                });
+            } catch (Cancelled error) {
+                throw error;
+            } catch (RuntimeException error) {
+                //a ParseError escapes parse() once it has been reported
+                if (!parseSession.hadError) throw error;
+            }
+
+            if (!pending.isEmpty()) stmtQueue.put(pending);
+
+            //the serial scanner always runs to the end, reporting every scan error,
+            //so keep draining it even if the parser gave up early
+            while (tokenQueue.take() != null) {}
+
+            //the scanner has finished, so every scan error is out and the parse error
+            //(if any) can follow - then the interpreter's output either goes or doesn't
+            target.err.write(parseErrors.toByteArray(), 0, parseErrors.size());
+            target.err.flush();
+            if (scanSession.hadError || parseSession.hadError) {
+                interpretOut.discard();
+                interpretErr.discard();
+            } else {
+                interpretOut.open();
+                interpretErr.open();
+            }
+        } finally {
+            stmtQueue.close();
+        }
+    }
+
+    private void interpret() {
+        Interpreter interpreter = new Interpreter(tracer, interpretSession.out);
+        interpreter.setBudget(budget);
+        HashConser conser = hashCons ? new HashConser() : null;
+        //batches waiting for the parse to finish, once the held output is full
+        List<List<Stmt>> deferred = new ArrayList<>();
+
+        List<Stmt> batch;
+        while ((batch = stmtQueue.take()) != null) {
+            //after a runtime error the serial interpreter stops, but we keep draining
+            //so the parser can still find (and report) any later syntax error
+            if (interpretSession.hadRuntimeError || interpretOut.discarding()) continue;
+
+            if (!deferred.isEmpty() || interpretOut.full()) {
+                deferred.add(batch);
+                continue;
+            }
+            interpret(interpreter, conser, batch);
+        }
+
+        //the parser closes the queue only after opening or discarding the output
+        for (List<Stmt> next : deferred) {
+            if (interpretSession.hadRuntimeError || interpretOut.discarding()) break;
+            interpret(interpreter, conser, next);
+        }
+    }
+
+    private void interpret(Interpreter interpreter, HashConser conser, List<Stmt> batch) {
+        if (conser != null) {
+            interpreter.interpret(conser.share(batch), conser.shared());
+        } else {
+            interpreter.interpret(batch);
+        }
+    }
+
+    //start a thread for one stage, with the stage's own session
+    private Thread stage(String name, Session session, Runnable body) {
+        Thread thread = new Thread(() -> {
+            Lox.setSession(session);
+            try {
+                body.run();
+            } catch (Cancelled error) {
+                //another stage failed and has already recorded why
+            } catch (Throwable error) {
+                failure.compareAndSet(null, error);
+                //unblock everyone else
+                tokenQueue.cancel();
+                tokenQueue.close();
+                stmtQueue.cancel();
+                stmtQueue.close();
+            } finally {
+                Lox.clearSession();
+            }
+        }, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /*
+     * One of the interpreter's streams: holds what's written to it until the parse
+     * is known to be clean, then writes it out and passes everything after straight
+     * through - or drops it all if there was a syntax error
+     */
+    private static class Gate extends OutputStream {
+        private final PrintStream target;
+        private ByteArrayOutputStream held = new ByteArrayOutputStream();
+        private volatile boolean open = false;
+        private volatile boolean discarding = false;
+
+        Gate(PrintStream target) {
+            this.target = target;
+        }
+
+        //whether the interpreter should stop adding to what's held
+        synchronized boolean full() {
+            return !open && !discarding && held.size() >= HELD_OUTPUT;
+        }
+
+        boolean discarding() {
+            return discarding;
+        }
+
+        synchronized void open() {
+            target.write(held.toByteArray(), 0, held.size());
+            target.flush();
+            held = null;
+            open = true;
+        }
+
+        synchronized void discard() {
+            held = null;
+            discarding = true;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (open) target.write(b);
+            else if (!discarding) held.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            if (open) target.write(bytes, offset, length);
+            else if (!discarding) held.write(bytes, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (open) target.flush();
+        }
+    }
+
+    //thrown inside a stage to unwind it when the stage downstream has gone away
+    private static class Cancelled extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Cancelled() {
+            super(null, null, false, false);
+        }
+    }
+
+    /*
+     * The parser reads tokens with get(i), only ever looking at the current token
+     * and the one before it. This list pulls batches from the scanner as the parser
+     * reaches them and only keeps the last two, so memory stays bounded
+     */
+    private static class TokenStream extends AbstractList<Token> {
+        private final SpscRingBuffer<List<Token>> queue;
+
+        private List<Token> previous = List.of();
+        private int previousStart = 0;
+        private List<Token> current = List.of();
+        private int currentStart = 0;
+
+        TokenStream(SpscRingBuffer<List<Token>> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public Token get(int index) {
+            while (index >= currentStart + current.size()) {
+                List<Token> next = queue.take();
+                if (next == null) {
+                    throw new IllegalStateException("Token stream ended before EOF.");
+                }
+                previous = current;
+                previousStart = currentStart;
+                currentStart += current.size();
+                current = next;
+            }
+
+            if (index >= currentStart) return current.get(index - currentStart);
+            if (index >= previousStart) return previous.get(index - previousStart);
+            throw new IndexOutOfBoundsException("Token " + index + " has already been discarded.");
+        }
+
+        //number of tokens received from the scanner so far
+        @Override
+        public int size() {
+            return currentStart + current.size();
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package com.craftinginterpreters.lox;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Process-wide cache of the results of pure expressions, shared by every interpreter,
+ * so a heavy formula that turns up again - in another statement, another script or
+ * another daemon request - costs a hash lookup instead of an evaluation
+ *
+ * Only subtrees built from literals and operators are cached (inputs and calls can give
+ * a different answer every time). They're found by a 128-bit fingerprint of their
+ * structure, so the same formula on a different line still hits. The fingerprint is
+ * seeded afresh in every process, and a hit is only taken once the subtree has been
+ * checked against the one the entry was made from (Expr.sameShape) - the cache is shared
+ * between daemon clients, and one of them mustn't be able to build a formula that
+ * collides with another's and hand it the wrong answer. A pure subtree that fails with a
+ * RuntimeError fails the same way every time, so the error is cached too, and raised
+ * again against the matching token of the tree being evaluated
+ *
+ * The cache is bounded by weight (roughly, the memory its results and subtrees take up)
+ * and evicts by greedy-dual-size-frequency: an entry's priority is how often it's been
+ * used times how much evaluation it saves per unit of weight, plus an age that goes up as
+ * entries are evicted, so that things which were popular a long time ago eventually go too
+ */
+class ResultCache {
+
+    //run with -Dlox.cache=<weight> to turn the cache on
+    static final ResultCache global = fromSystemProperty();
+
+    //subtrees smaller than this are cheaper to evaluate than to look up
+    static final int MIN_NODES = Math.max(2, Integer.getInteger("lox.cache.minNodes", 32));
+
+    //the fingerprint of a pure subtree
+    static class Key {
+        final long high;
+        final long low;
+        //how many nodes evaluating the subtree would take (not part of the key)
+        final int nodes;
+
+        Key(long high, long low, int nodes) {
+            this.high = high;
+            this.low = low;
+            this.nodes = nodes;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) return false;
+            Key other = (Key)object;
+            return high == other.high && low == other.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int)(high ^ (high >>> 32));
+        }
+    }
+
+    //the result of one subtree, and what keeping it costs and saves
+    static class Entry {
+        //the subtree the result was worked out from, to check a hit against
+        final Expr shape;
+        final Object value;
+        //message of the RuntimeError the subtree fails with, or null if it succeeds
+        final String error;
+        //which of the subtree's operators the error is reported against (see tokenAt())
+        final int errorToken;
+        final int nodes;
+        final long weight;
+
+        //updated without locking - a lost increment only makes the priority slightly off
+        volatile int uses = 1;
+        volatile double priority;
+
+        Entry(Expr shape, Object value, String error, int errorToken, int nodes, long weight, double age) {
+            this.shape = shape;
+            this.value = value;
+            this.error = error;
+            this.errorToken = errorToken;
+            this.nodes = nodes;
+            this.weight = weight;
+            this.priority = age + (double)nodes / weight;
+        }
+    }
+
+    private final long capacity;
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong weight = new AtomicLong();
+    //priority of the last entry evicted - new and used entries start from here
+    private volatile double age = 0;
+
+    ResultCache(long capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive.");
+        }
+        this.capacity = capacity;
+    }
+
+    static ResultCache fromSystemProperty() {
+        long capacity = Long.getLong("lox.cache", 0);
+        if (capacity <= 0) return null;
+        return new ResultCache(capacity);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long weight() {
+        return weight.get();
+    }
+
+    //the subtrees of a statement worth looking up, with their keys: the largest pure
+    //subtrees of at least MIN_NODES (nothing inside one of them is looked up as well)
+    //
+    //the keys don't depend on the cache, so they're found once and kept on the statement
+    //itself - the daemon runs the same parsed statements again and again, and they go
+    //when the statement does. Two threads running a new statement at once may both
+    //find them, which only costs the walk
+    static Map<Expr, Key> candidates(Stmt stmt) {
+        Map<Expr, Key> candidates = stmt.cacheCandidates;
+        if (candidates == null) {
+            candidates = findCandidates(stmt);
+            stmt.cacheCandidates = candidates;
+        }
+        return candidates;
+    }
+
+    //one pass over the statement without recursion, fingerprinting every pure subtree
+    //from its operands' fingerprints on the way back up
+    private static Map<Expr, Key> findCandidates(Stmt stmt) {
+        Expr root;
+        if (stmt instanceof Stmt.Expression) root = ((Stmt.Expression)stmt).expression;
+        else if (stmt instanceof Stmt.Print) root = ((Stmt.Print)stmt).expression;
+        //a bench statement is there to measure the evaluation itself
+        else return Collections.emptyMap();
+
+        Map<Expr, Key> candidates = null;
+
+        //nodes still to finish - a node is expanded once its operands have been pushed
+        List<Expr> frames = new ArrayList<>();
+        List<Boolean> expanded = new ArrayList<>();
+        //for every finished node its parent hasn't used yet: its size (negated if the
+        //subtree isn't pure) and its fingerprint
+        int[] sizes = new int[16];
+        long[] highs = new long[16];
+        long[] lows = new long[16];
+        int count = 0;
+
+        frames.add(root);
+        expanded.add(false);
+        List<Expr> operands = new ArrayList<>();
+        long[] lanes = new long[2];
+        while (!frames.isEmpty()) {
+            int top = frames.size() - 1;
+            Expr expr = frames.get(top);
+
+            if (!expanded.get(top)) {
+                expanded.set(top, true);
+                operands.clear();
+                pushChildren(expr, operands);
+                for (Expr operand : operands) {
+                    frames.add(operand);
+                    expanded.add(false);
+                }
+                continue;
+            }
+
+            frames.remove(top);
+            expanded.remove(top);
+            operands.clear();
+            pushChildren(expr, operands);
+            int arity = operands.size();
+            int first = count - arity;
+
+            boolean pure = expr instanceof Expr.Literal || expr instanceof Expr.Grouping
+                || expr instanceof Expr.Unary || expr instanceof Expr.Binary;
+            int size = 1;
+            for (int i = first; i < count; i++) {
+                size += Math.abs(sizes[i]);
+                pure &= sizes[i] > 0;
+            }
+
+            if (pure) {
+                lanes[0] = HIGH_SEED;
+                lanes[1] = LOW_SEED;
+                fingerprintNode(expr, lanes);
+                for (int i = first; i < count; i++) {
+                    lanes[0] = mix(lanes[0], highs[i]);
+                    lanes[1] = mix(lanes[1] * LOW_MULTIPLIER, lows[i]);
+                }
+            } else {
+                //this node won't be looked up, so its operands that qualify will be instead
+                for (int i = first; i < count; i++) {
+                    if (sizes[i] >= MIN_NODES) {
+                        if (candidates == null) candidates = new IdentityHashMap<>();
+                        //operands were pushed last one first, so they finished in order
+                        candidates.put(operands.get(count - 1 - i), new Key(highs[i], lows[i], sizes[i]));
+                    }
+                }
+                lanes[0] = 0;
+                lanes[1] = 0;
+            }
+
+            count = first;
+            if (count == sizes.length) {
+                sizes = Arrays.copyOf(sizes, count * 2);
+                highs = Arrays.copyOf(highs, count * 2);
+                lows = Arrays.copyOf(lows, count * 2);
+            }
+            sizes[count] = pure ? size : -size;
+            highs[count] = lanes[0];
+            lows[count] = lanes[1];
+            count++;
+        }
+
+        //(the maps are by identity - structurally equal nodes elsewhere aren't candidates)
+        if (sizes[0] >= MIN_NODES) {
+            candidates = new IdentityHashMap<>();
+            candidates.put(root, new Key(highs[0], lows[0], sizes[0]));
+        }
+        return candidates == null ? Collections.emptyMap() : candidates;
+    }
+
+    //the two lanes of the fingerprint start differently and mix differently, so
+    //between them they behave like one 128-bit hash - the starting points are random, so
+    //which formulas collide can't be worked out ahead of time
+    private static final SecureRandom seeds = new SecureRandom();
+    private static final long HIGH_SEED = seeds.nextLong();
+    private static final long LOW_SEED = seeds.nextLong();
+    private static final long LOW_MULTIPLIER = 0x165667B19E3779F9L;
+
+    //mix what the node itself contributes (its kind, operator or value) into both lanes
+    private static void fingerprintNode(Expr expr, long[] lanes) {
+        long kind;
+        long payload;
+        if (expr instanceof Expr.Binary) {
+            kind = 1;
+            payload = ((Expr.Binary)expr).operator.type.ordinal();
+        } else if (expr instanceof Expr.Unary) {
+            kind = 2;
+            payload = ((Expr.Unary)expr).operator.type.ordinal();
+        } else if (expr instanceof Expr.Grouping) {
+            kind = 3;
+            payload = 0;
+        } else {
+            Object value = ((Expr.Literal)expr).value;
+            if (value == null) {
+                kind = 4;
+                payload = 0;
+            } else if (value instanceof Boolean) {
+                kind = 5;
+                payload = (boolean)value ? 1 : 0;
+            } else if (value instanceof Double) {
+                //the bits, so -0.0 and 0.0 differ just as they do under Double.equals
+                kind = 6;
+                payload = Double.doubleToLongBits((double)value);
+            } else {
+                String text = (String)value;
+                kind = 7;
+                for (int i = 0; i < text.length(); i++) {
+                    lanes[0] = mix(lanes[0], text.charAt(i));
+                    lanes[1] = mix(lanes[1] * LOW_MULTIPLIER, text.charAt(i));
+                }
+                payload = text.length();
+            }
+        }
+
+        lanes[0] = mix(mix(lanes[0], kind), payload);
+        lanes[1] = mix(mix(lanes[1] * LOW_MULTIPLIER, kind), payload);
+    }
+
+    //murmur3's 64-bit finaliser over the running hash and the next value
+    private static long mix(long hash, long value) {
+        long h = hash * 0x9E3779B97F4A7C15L + value;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    //push the operands of 'expr' so that they come off the stack left to right
+    private static void pushChildren(Expr expr, List<Expr> stack) {
+        if (expr instanceof Expr.Binary) {
+            stack.add(((Expr.Binary)expr).right);
+            stack.add(((Expr.Binary)expr).left);
+        } else if (expr instanceof Expr.Unary) {
+            stack.add(((Expr.Unary)expr).right);
+        } else if (expr instanceof Expr.Grouping) {
+            stack.add(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+            for (int i = call.arguments.size() - 1; i >= 0; i--) stack.add(call.arguments.get(i));
+            stack.add(call.callee);
+        }
+    }
+
+    //the cached result for 'expr', a subtree with this key, or null
+    Entry get(Key key, Expr expr) {
+        Entry entry = entries.get(key);
+        //a different formula with the same fingerprint is a miss (and keeps the entry)
+        if (entry == null || !Expr.sameShape(entry.shape, expr)) {
+            Metrics.global.cacheMisses.increment();
+            return null;
+        }
+
+        Metrics.global.cacheHits.increment();
+        int uses = entry.uses + 1;
+        entry.uses = uses;
+        entry.priority = age + (double)uses * entry.nodes / entry.weight;
+        return entry;
+    }
+
+    //the error a cached entry fails with, reported against the matching token of 'expr'
+    RuntimeError error(Entry entry, Expr expr) {
+        return new RuntimeError(tokenAt(expr, entry.errorToken), entry.error);
+    }
+
+    void putValue(Key key, Expr expr, Object value) {
+        long weight = weightOf(key);
+        //a long string costs about one unit per 16 characters
+        if (value instanceof String) weight += ((String)value).length() / 16;
+        put(key, new Entry(expr, value, null, -1, key.nodes, weight, age));
+    }
+
+    void putError(Key key, Expr expr, RuntimeError error) {
+        int token = indexOf(expr, error.token);
+        //not one of this subtree's operators - nothing we could report it against next time
+        if (token < 0) return;
+        put(key, new Entry(expr, null, error.getMessage(), token, key.nodes, weightOf(key), age));
+    }
+
+    //an entry keeps its subtree alive, at about one unit per 64 nodes
+    private static long weightOf(Key key) {
+        return 1 + key.nodes / 64;
+    }
+
+    private void put(Key key, Entry entry) {
+        if (entries.putIfAbsent(key, entry) != null) return;
+        if (weight.addAndGet(entry.weight) > capacity) evict();
+    }
+
+    //drop the lowest priority entries until we're down to three quarters of the capacity,
+    //so the sort is paid for by many puts rather than done on each one
+    private synchronized void evict() {
+        if (weight.get() <= capacity) return;
+
+        List<Map.Entry<Key, Entry>> all = new ArrayList<>(entries.entrySet());
+        all.sort((a, b) -> Double.compare(a.getValue().priority, b.getValue().priority));
+
+        long target = capacity / 4 * 3;
+        for (Map.Entry<Key, Entry> victim : all) {
+            if (weight.get() <= target) break;
+            if (entries.remove(victim.getKey(), victim.getValue())) {
+                weight.addAndGet(-victim.getValue().weight);
+                age = victim.getValue().priority;
+                Metrics.global.cacheEvictions.increment();
+            }
+        }
+    }
+
+    //the operator tokens of a pure subtree, numbered in pre-order - subtrees with the
+    //same fingerprint have the same tokens at the same numbers, only on different lines
+    private static int indexOf(Expr root, Token token) {
+        List<Expr> pending = new ArrayList<>();
+        pending.add(root);
+        int index = 0;
+        while (!pending.isEmpty()) {
+            Expr expr = pending.remove(pending.size() - 1);
+            Token operator = operatorOf(expr);
+            if (operator != null) {
+                if (operator == token) return index;
+                index++;
+            }
+            pushChildren(expr, pending);
+        }
+        return -1;
+    }
+
+    private static Token tokenAt(Expr root, int target) {
+        List<Expr> pending = new ArrayList<>();
+        pending.add(root);
+        int index = 0;
+        while (!pending.isEmpty()) {
+            Expr expr = pending.remove(pending.size() - 1);
+            Token operator = operatorOf(expr);
+            if (operator != null) {
+                if (index == target) return operator;
+                index++;
+            }
+            pushChildren(expr, pending);
+        }
+        //unreachable - the entry was made from a subtree with the same shape
+        throw new IllegalStateException("Cached error token not found.");
+    }
+
+    private static Token operatorOf(Expr expr) {
+        if (expr instanceof Expr.Binary) return ((Expr.Binary)expr).operator;
+        if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator;
+        return null;
+    }
+}
@@ -1,10 +1,18 @@
 package com.craftinginterpreters.lox;
 
+/*
+ * An error in a running script - all it carries is the message and the token to report
+ * it against. There's no Java stack trace (it would only show the interpreter's own
+ * frames), so throwing one costs little more than a return, even when every run fails
+ */
 class RuntimeError extends RuntimeException {
-    final Token token;
+    private static final long serialVersionUID = 1L;
+
+    //tokens aren't serializable - an error is only ever reported where it happened
+    final transient Token token;
 
     RuntimeError(Token token, String message) {
-        super(message);
+        super(message, null, false, false);
         this.token = token;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,229 @@
+package com.craftinginterpreters.lox;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * End-to-end scaling check: runs generated scripts through the scanner, parser
+ * and interpreter, turning up one property of the script at a time, and flags
+ * any property whose cost grows faster than linearly
+ *
+ * For every step we record the median time of the runs, throughput, bytes allocated per
+ * run and peak heap. Each step runs at least MIN_RUNS times and for at least
+ * MIN_MEASURED_NANOS in all, so small inputs get enough runs to even out GC pauses and
+ * scheduling. The growth rate is the slope on a log-log scale - 1.0 means twice the input
+ * takes twice as long, 2.0 means quadratic. An overall slope above lox.bench.maxSlope, two
+ * steps in a row above the step limit (one alone is put down to noise), or a crash - like
+ * a StackOverflowError at some nesting depth, or a script that fails - fails the run with
+ * exit code 1
+ *
+ * The properties and their sizes are GenerateCorpus.KNOBS, so they're the same as the
+ * corpus files GenerateCorpus writes
+ *
+ * Usage: jlox-bench
+ */
+public class ScalingBenchmark {
+
+    private static final double MAX_SLOPE = Double.parseDouble(System.getProperty("lox.bench.maxSlope", "1.25"));
+    //a single step between two sizes may be noisier than the trend as a whole
+    private static final double MAX_STEP_SLOPE = MAX_SLOPE + 0.35;
+    //steps faster than this are too noisy to judge on their own
+    private static final long MIN_STEP_NANOS = 10_000_000;
+
+    private static final int WARMUP_RUNS = 3;
+    //every step is run at least this many times, and until it has taken this long in all
+    private static final int MIN_RUNS = 9;
+    private static final long MIN_MEASURED_NANOS = 250_000_000;
+    //a bound on the runs of a tiny step
+    private static final int MAX_RUNS = 201;
+
+    private static final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+    private static class Sample {
+        long bytes;
+        long nanos;
+        long allocatedBytes;
+        //time spent collecting garbage, per run
+        long gcMillis;
+        long peakHeapBytes;
+        Throwable crash;
+    }
+
+    public static void main(String[] args) {
+        List<GenerateCorpus.Knob> dimensions = GenerateCorpus.KNOBS;
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        if (heap.getInit() < heap.getMax()) {
+            System.out.println("note: the heap can grow, so collecting while it does may show up as"
+                + " scaling - give it a fixed size (-Xms2g -Xmx2g)");
+            System.out.println();
+        }
+
+        //get the whole pipeline compiled before the first measurement
+        for (GenerateCorpus.Knob dimension : dimensions) {
+            measure(dimension.corpus.apply(dimension.values[0]));
+        }
+
+        boolean failed = false;
+        for (GenerateCorpus.Knob dimension : dimensions) {
+            failed |= run(dimension);
+        }
+
+        System.out.println(failed ? "FAILED: super-linear scaling detected." : "OK: all dimensions scale linearly.");
+        if (failed) System.exit(1);
+    }
+
+    //measure one dimension and print its table - returns true if it should be flagged
+    private static boolean run(GenerateCorpus.Knob dimension) {
+        System.out.println("== " + dimension.name);
+        System.out.printf("%10s %12s %10s %8s %10s %12s %10s %7s%n",
+            "value", "bytes", "ms", "gc ms", "MB/s", "alloc MB/s", "peak MB", "slope");
+
+        boolean flagged = false;
+        //whether the step before this one was over the step limit
+        boolean previousHigh = false;
+        Sample first = null;
+        Sample previous = null;
+        int firstValue = 0;
+        int previousValue = 0;
+
+        for (int value : dimension.values) {
+            Sample sample = measure(dimension.corpus.apply(value));
+
+            if (sample.crash != null) {
+                System.out.printf("%10d %12d  CRASHED: %s%n", value, sample.bytes, sample.crash);
+                flagged = true;
+                break;
+            }
+
+            String slope = "";
+            if (previous != null) {
+                double step = slope(previousValue, previous.nanos, value, sample.nanos);
+                slope = String.format("%.2f", step);
+                boolean high = step > MAX_STEP_SLOPE && previous.nanos >= MIN_STEP_NANOS;
+                if (high) {
+                    slope += previousHigh ? " !" : " ?";
+                    flagged |= previousHigh;
+                }
+                previousHigh = high;
+            }
+
+            double seconds = sample.nanos / 1e9;
+            System.out.printf("%10d %12d %10.2f %8d %10.1f %12.1f %10.1f %7s%n",
+                value, sample.bytes, sample.nanos / 1e6, sample.gcMillis,
+                sample.bytes / 1e6 / seconds,
+                sample.allocatedBytes / 1e6 / seconds,
+                sample.peakHeapBytes / 1e6,
+                slope);
+
+            if (first == null) {
+                first = sample;
+                firstValue = value;
+            }
+            previous = sample;
+            previousValue = value;
+        }
+
+        if (first != null && previous != first) {
+            double overall = slope(firstValue, first.nanos, previousValue, previous.nanos);
+            boolean superLinear = overall > MAX_SLOPE;
+            System.out.printf("overall slope %.2f%s%n", overall, superLinear ? "  SUPER-LINEAR" : "");
+            flagged |= superLinear;
+        }
+        System.out.println();
+        return flagged;
+    }
+
+    private static double slope(int fromValue, long fromNanos, int toValue, long toNanos) {
+        return Math.log((double)toNanos / fromNanos) / Math.log((double)toValue / fromValue);
+    }
+
+    private static Sample measure(String source) {
+        Sample sample = new Sample();
+        sample.bytes = source.length();
+
+        try {
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                runOnce(source);
+            }
+
+            resetPeakHeap();
+            com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+            long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+            long gcBefore = gcMillis();
+            long[] times = new long[MAX_RUNS];
+            int runs = 0;
+            long total = 0;
+
+            while (runs < MAX_RUNS && (runs < MIN_RUNS || total < MIN_MEASURED_NANOS)) {
+                long start = System.nanoTime();
+                runOnce(source);
+                times[runs] = System.nanoTime() - start;
+                total += times[runs++];
+            }
+
+            //the median, so a run slowed down by a collection (or sped up by luck) doesn't count
+            Arrays.sort(times, 0, runs);
+            sample.nanos = Math.max(times[runs / 2], 1);
+            sample.allocatedBytes = (threads.getCurrentThreadAllocatedBytes() - allocatedBefore) / runs;
+            sample.gcMillis = (gcMillis() - gcBefore) / runs;
+            sample.peakHeapBytes = peakHeap();
+        } catch (RuntimeException | StackOverflowError | OutOfMemoryError error) {
+            //a script that doesn't run through (like a generated syntax error) fails
+            //this data point, and the table carries on with the next dimension
+            sample.crash = error;
+        }
+
+        return sample;
+    }
+
+    //the same steps as Lox.run(), with all output thrown away
+    private static void runOnce(String source) {
+        Session session = new Session(discard, discard);
+        Lox.setSession(session);
+        try {
+            List<Token> tokens = new Scanner(source).scanTokens();
+            List<Stmt> statements = new Parser(tokens).parse();
+            if (session.hadError) {
+                throw new IllegalStateException("Generated corpus has a syntax error.");
+            }
+
+            new Interpreter(null, discard).interpret(statements);
+            if (session.hadRuntimeError) {
+                throw new IllegalStateException("Generated corpus failed at runtime.");
+            }
+        } finally {
+            Lox.clearSession();
+        }
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(collector.getCollectionTime(), 0);
+        }
+        return millis;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
@@ -4,12 +4,27 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
 class Scanner {
-    private final String source; //raw source code
-    private final List<Token> tokens = new ArrayList<>(); //list to fill with tokens we will generate from source
+
+    //a lexical error, collected by scanTokens(errors) instead of being reported
+    static class ScanError {
+        final int line;
+        final String message;
+
+        ScanError(int line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+    }
+
+    private String source; //raw source code
+    private List<Token> tokens = new ArrayList<>(); //list to fill with tokens we will generate from source
+    //where lexical errors go instead of being reported, in scanTokens(errors) - null otherwise
+    private List<ScanError> errors = null;
 
     //fields to keep track of where the scanner is in the source code
     //start and current are offsets that index into the string ('source')
@@ -38,14 +53,27 @@ class Scanner {
         keywords.put("true", TRUE);
         keywords.put("var", VAR);
         keywords.put("while", WHILE);
+        keywords.put("bench", BENCH);
     }
 
     Scanner(String source) {
         this.source = source;
     }
 
+    //start again on another source, so one scanner can go through many files
+    //the token list is cleared and refilled rather than replaced, so the list the last
+    //scanTokens() returned mustn't be used after this
+    void reset(String source) {
+        this.source = source;
+        tokens.clear();
+        start = 0;
+        current = 0;
+        line = 1;
+    }
+
     //main scan function
     List<Token> scanTokens() {
+        long startTime = System.nanoTime();
         while (!isAtEnd()) {
             //We are at the beginning of the next lexeme
             start = current;
@@ -55,9 +83,47 @@ class Scanner {
 
         //append an EOF token to the end of the token list
         tokens.add(new Token(EOF, "", null, line));
+
+        Metrics.global.tokensScanned.add(tokens.size());
+        Metrics.global.scanLatency.record(System.nanoTime() - startTime);
         return tokens;
     }
 
+    //scan without reporting anything: every lexical error is added to 'errors' instead
+    List<Token> scanTokens(List<ScanError> errors) {
+        this.errors = errors;
+        try {
+            return scanTokens();
+        } finally {
+            this.errors = null;
+        }
+    }
+
+    //streaming version of scanTokens(): hands tokens to 'sink' in batches of up to
+    //batchSize as soon as they're scanned, instead of building one big list
+    //the last batch always ends with the EOF token
+    void scanTokens(Consumer<List<Token>> sink, int batchSize) {
+        long startTime = System.nanoTime();
+        while (!isAtEnd()) {
+            start = current;
+            scanToken();
+
+            if (tokens.size() >= batchSize) {
+                Metrics.global.tokensScanned.add(tokens.size());
+                sink.accept(tokens);
+                tokens = new ArrayList<>(batchSize);
+            }
+        }
+
+        tokens.add(new Token(EOF, "", null, line));
+        Metrics.global.tokensScanned.add(tokens.size());
+        sink.accept(tokens);
+        tokens = new ArrayList<>();
+
+        //includes any time spent waiting for the consumer to catch up
+        Metrics.global.scanLatency.record(System.nanoTime() - startTime);
+    }
+
     private void scanToken() {
         
         char c = advance();
@@ -124,13 +190,22 @@ class Scanner {
             } else {
                 //We get an input token we don't recognise, like '@'
                 //We will still continue scanning! But calling error() means the code isn't executed (as hasError is set)
-                Lox.error(line, "Unexpected character");
+                error("Unexpected character");
             }
             break;
             
         }
     }
 
+    private void error(String message) {
+        if (errors != null) {
+            errors.add(new ScanError(line, message));
+            Metrics.global.syntaxErrors.increment();
+        } else {
+            Lox.error(line, message);
+        }
+    }
+
     //have we consumed all of the characters of the source code?
     private boolean isAtEnd() {
         return current >= source.length();
@@ -174,7 +249,7 @@ class Scanner {
 
         //end of the source code with no closing "
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string");
+            error("Unterminated string");
             return;
         }
 
@@ -183,7 +258,8 @@ class Scanner {
 
         //Trim the surrounding quotes from the string
         //if we supported escape characters we would have to unescape them here as well
-        String trimmedString = source.substring(start+1, current-1);
+        //identical literals share one interned instance
+        String trimmedString = Interner.literal(source.substring(start+1, current-1));
         addToken(STRING, trimmedString);
     }
 
@@ -0,0 +1,164 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Shares a fixed set of carrier threads fairly between any number of scripts, so a
+ * long-running script can't starve the short ones submitted after it
+ *
+ * A script is a resumable task: an Interpreter working through its program a slice of
+ * 'quantum' evaluated nodes at a time (see Interpreter.resume()), stopping between two
+ * nodes or two statements. Its state is all on the heap, so a waiting task doesn't tie
+ * up a thread and thousands can be queued
+ *
+ * Which task gets the next free carrier is decided by weighted fair queuing on virtual
+ * time: every task has a tag, which goes up by the time each of its slices took divided
+ * by its weight, and the ready task with the lowest tag runs next (ties in the order they
+ * became ready). A new task starts at the scheduler's virtual time - the lowest tag of any
+ * task running or waiting - so it gets no credit for the time before it arrived, but
+ * queues behind nothing that has already had more than its share. A short script
+ * waits about a slice for a carrier however many heavy ones are running
+ *
+ * Wall-clock limits like -Dlox.budget.timeoutMillis keep counting while a task waits
+ */
+class Scheduler {
+
+    //run with -Dlox.schedule.carriers=<n> for n carrier threads (default: one per core)
+    //and -Dlox.schedule.quantum=<n> to let each task evaluate n nodes per slice
+    static Scheduler fromSystemProperties() {
+        int carriers = Integer.getInteger("lox.schedule.carriers", Runtime.getRuntime().availableProcessors());
+        int quantum = Integer.getInteger("lox.schedule.quantum", 10_000);
+        return new Scheduler(carriers, quantum);
+    }
+
+    private static final Comparator<Task> byTag =
+        Comparator.<Task>comparingDouble(task -> task.tag).thenComparingLong(task -> task.sequence);
+
+    private final int quantum;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readyNotEmpty = lock.newCondition();
+    private final PriorityQueue<Task> ready = new PriorityQueue<>(byTag);
+    private final List<Task> running = new ArrayList<>();
+    //only ever goes up
+    private double virtualTime = 0;
+    private long sequence = 0;
+
+    //one script, from submit() to the end of its program
+    private static class Task {
+        final Interpreter interpreter;
+        final Session session;
+        final double weight;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        //virtual time used so far
+        double tag;
+        long sequence;
+        //System.nanoTime() when it last joined the ready queue
+        long readySince;
+
+        Task(Interpreter interpreter, Session session, double weight) {
+            this.interpreter = interpreter;
+            this.session = session;
+            this.weight = weight;
+        }
+    }
+
+    Scheduler(int carriers, int quantum) {
+        if (carriers < 1) throw new IllegalArgumentException("A scheduler needs at least one carrier.");
+        if (quantum < 1) throw new IllegalArgumentException("A slice must be at least one node.");
+        this.quantum = quantum;
+
+        //the carriers live as long as the process
+        for (int i = 0; i < carriers; i++) {
+            Thread.ofPlatform().name("lox-carrier-" + i).daemon().start(this::carry);
+        }
+    }
+
+    //run 'statements' on 'interpreter' (which mustn't be used for anything else until the
+    //returned future completes), with the calling thread's Session
+    //a task of weight 2 gets twice the carrier time of one of weight 1 when they compete
+    CompletableFuture<Void> submit(Interpreter interpreter, List<Stmt> statements, double weight) {
+        if (!(weight > 0)) throw new IllegalArgumentException("Weight must be positive.");
+
+        Task task = new Task(interpreter, Lox.session(), weight);
+        interpreter.start(statements);
+        lock.lock();
+        try {
+            task.tag = virtualTime;
+            enqueue(task);
+        } finally {
+            lock.unlock();
+        }
+        return task.done;
+    }
+
+    //what every carrier thread does: run a slice of whichever task is owed one most
+    private void carry() {
+        while (true) {
+            Task task = next();
+
+            boolean over;
+            long start = System.nanoTime();
+            Metrics.global.scheduleLatency.record(start - task.readySince);
+            Lox.setSession(task.session);
+            try {
+                over = task.interpreter.resume(quantum);
+            } catch (RuntimeException | Error error) {
+                task.done.completeExceptionally(error);
+                over = true;
+            } finally {
+                Lox.clearSession();
+            }
+            long used = System.nanoTime() - start;
+
+            lock.lock();
+            try {
+                running.remove(task);
+                task.tag += used / task.weight;
+                if (!over) enqueue(task);
+            } finally {
+                lock.unlock();
+            }
+            if (over) task.done.complete(null);
+        }
+    }
+
+    private Task next() {
+        lock.lock();
+        try {
+            while (ready.isEmpty()) {
+                readyNotEmpty.awaitUninterruptibly();
+            }
+            Task task = ready.poll();
+            running.add(task);
+            advance();
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //the rest are only called under the lock
+    private void enqueue(Task task) {
+        task.sequence = sequence++;
+        task.readySince = System.nanoTime();
+        ready.add(task);
+        readyNotEmpty.signal();
+    }
+
+    //move virtual time up to the lowest tag still in play
+    private void advance() {
+        double lowest = ready.isEmpty() ? Double.MAX_VALUE : ready.peek().tag;
+        for (Task task : running) {
+            lowest = Math.min(lowest, task.tag);
+        }
+        if (lowest != Double.MAX_VALUE) virtualTime = Math.max(virtualTime, lowest);
+    }
+}
@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+sealed interface SealedExpr {
+    record Binary(SealedExpr left, Token operator, SealedExpr right) implements SealedExpr {}
+    record Call(SealedExpr callee, Token paren, List<SealedExpr> arguments) implements SealedExpr {}
+    record Grouping(SealedExpr expression) implements SealedExpr {}
+    record Literal(Object value) implements SealedExpr {}
+    record Unary(Token operator, SealedExpr right) implements SealedExpr {}
+    record Variable(Token name) implements SealedExpr {}
+}
@@ -0,0 +1,7 @@
+package com.craftinginterpreters.lox;
+
+sealed interface SealedStmt {
+    record Bench(Token keyword, SealedExpr iterations, SealedExpr expression) implements SealedStmt {}
+    record Expression(SealedExpr expression) implements SealedStmt {}
+    record Print(SealedExpr expression) implements SealedStmt {}
+}
@@ -0,0 +1,29 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+
+/*
+ * Where one run of the interpreter sends its output, and whether it has hit an error
+ *
+ * Each thread has its own session (see Lox.session()), so several scripts can run
+ * side by side in one process without seeing each other's errors
+ */
+class Session {
+    final PrintStream out;
+    final PrintStream err;
+
+    boolean hadError = false;
+    boolean hadRuntimeError = false;
+
+    Session(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    //process exit code for this run: 65 for a syntax error, 70 for a runtime error
+    int exitCode() {
+        if (hadError) return 65;
+        if (hadRuntimeError) return 70;
+        return 0;
+    }
+}
@@ -0,0 +1,92 @@
+package com.craftinginterpreters.lox;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Bounded queue between exactly one producer thread and one consumer thread
+ *
+ * The producer only ever writes 'tail' and the consumer only ever writes 'head',
+ * so no locks or CAS loops are needed - each side just publishes its index with
+ * a release store. A full buffer makes the producer wait, which is what keeps
+ * a fast stage from running arbitrarily far ahead of a slow one
+ */
+class SpscRingBuffer<T> {
+
+    private final Object[] slots;
+    private final int mask;
+
+    //next slot the consumer will read / the producer will write
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    //set by the producer once it has put its last item
+    private volatile boolean closed = false;
+    //set by the consumer if it stops reading, so a waiting producer can give up
+    private volatile boolean cancelled = false;
+
+    SpscRingBuffer(int capacity) {
+        //round up to a power of 2 so we can wrap with a mask
+        int size = Integer.highestOneBit(Math.max(capacity, 1));
+        if (size < capacity) size <<= 1;
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    //add an item, waiting while the buffer is full
+    //returns false (and drops the item) if the consumer has cancelled
+    boolean put(T item) {
+        long t = tail.get();
+        int idle = 0;
+        while (t - head.get() == slots.length) {
+            if (cancelled) return false;
+            idle = backOff(idle);
+        }
+
+        slots[(int)(t & mask)] = item;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    //take the next item, waiting while the buffer is empty
+    //returns null once the producer has closed the buffer and everything has been taken
+    @SuppressWarnings("unchecked")
+    T take() {
+        long h = head.get();
+        int idle = 0;
+        while (h == tail.get()) {
+            //check closed before looking at tail again - the producer sets tail first
+            if (closed && h == tail.get()) return null;
+            idle = backOff(idle);
+        }
+
+        int slot = (int)(h & mask);
+        T item = (T)slots[slot];
+        slots[slot] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    //producer: no more items are coming
+    void close() {
+        closed = true;
+    }
+
+    //consumer: no more items will be taken
+    void cancel() {
+        cancelled = true;
+    }
+
+    //spin briefly, then yield, then sleep - the stages hand off in batches,
+    //so a short wait is usually enough and a long one shouldn't burn a core
+    private static int backOff(int idle) {
+        if (idle < 100) {
+            Thread.onSpinWait();
+        } else if (idle < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50_000);
+        }
+        return idle + 1;
+    }
+}
@@ -1,10 +1,94 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
 abstract class Stmt {
     interface Visitor<R> {
+        R visitBenchStmt(Bench stmt);
         R visitExpressionStmt(Expression stmt);
         R visitPrintStmt(Print stmt);
     }
+
+    //structural equality - the same kinds of node with the same operators, names and
+    //values, on any lines (equals() is identity, so copies of a node stay apart as keys)
+    static boolean sameShape(Stmt a, Stmt b) {
+      //pairs of nodes still to compare - an explicit stack, so depth doesn't matter
+      List<Stmt> pending = new ArrayList<>();
+      pending.add(a);
+      pending.add(b);
+      while (!pending.isEmpty()) {
+        Stmt right = pending.remove(pending.size() - 1);
+        Stmt left = pending.remove(pending.size() - 1);
+        if (left == right) continue;
+        if (left == null || right == null || left.getClass() != right.getClass()) return false;
+        if (!left.sameFields(right, pending)) return false;
+      }
+      return true;
+    }
+
+    //structural hash - equal for any two trees with the same shape
+    static int shapeHash(Stmt node) {
+      List<Stmt> pending = new ArrayList<>();
+      pending.add(node);
+      int hash = 1;
+      while (!pending.isEmpty()) {
+        Stmt next = pending.remove(pending.size() - 1);
+        hash = 31 * hash + (next == null ? 0 : next.fieldHash(pending));
+      }
+      return hash;
+    }
+
+    //compare this node's own fields with those of 'other', a node of the same class,
+    //adding each pair of child nodes to 'pending' to be compared after
+    abstract boolean sameFields(Stmt other, List<Stmt> pending);
+
+    //hash this node's own fields, adding its child nodes to 'pending' to be hashed after
+    abstract int fieldHash(List<Stmt> pending);
+
+    //tokens match on what they say, not where they are
+    private static boolean sameToken(Token a, Token b) {
+      return a.type == b.type && a.lexeme.equals(b.lexeme) && Objects.equals(a.literal, b.literal);
+    }
+
+    private static int tokenHash(Token token) {
+      return Objects.hash(token.type, token.lexeme, token.literal);
+    }
+
+  static class Bench extends Stmt{
+    Bench(Token keyword, Expr iterations, Expr expression) {
+      this.keyword = keyword;
+      this.iterations = iterations;
+      this.expression = expression;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+        return visitor.visitBenchStmt(this);
+    }
+
+    @Override
+    boolean sameFields(Stmt node, List<Stmt> pending) {
+      Bench other = (Bench)node;
+      return sameToken(keyword, other.keyword)
+          && Expr.sameShape(iterations, other.iterations)
+          && Expr.sameShape(expression, other.expression);
+    }
+
+    @Override
+    int fieldHash(List<Stmt> pending) {
+      int hash = 64070160;
+      hash = 31 * hash + tokenHash(keyword);
+      hash = 31 * hash + Expr.shapeHash(iterations);
+      hash = 31 * hash + Expr.shapeHash(expression);
+      return hash;
+    }
+    final Token keyword;
+    final Expr iterations;
+    final Expr expression;
+  }
   static class Expression extends Stmt{
     Expression(Expr expression) {
       this.expression = expression;
@@ -14,6 +98,19 @@ abstract class Stmt {
     <R> R accept(Visitor<R> visitor) {
         return visitor.visitExpressionStmt(this);
     }
+
+    @Override
+    boolean sameFields(Stmt node, List<Stmt> pending) {
+      Expression other = (Expression)node;
+      return Expr.sameShape(expression, other.expression);
+    }
+
+    @Override
+    int fieldHash(List<Stmt> pending) {
+      int hash = 198012600;
+      hash = 31 * hash + Expr.shapeHash(expression);
+      return hash;
+    }
     final Expr expression;
   }
   static class Print extends Stmt{
@@ -25,8 +122,23 @@ abstract class Stmt {
     <R> R accept(Visitor<R> visitor) {
         return visitor.visitPrintStmt(this);
     }
+
+    @Override
+    boolean sameFields(Stmt node, List<Stmt> pending) {
+      Print other = (Print)node;
+      return Expr.sameShape(expression, other.expression);
+    }
+
+    @Override
+    int fieldHash(List<Stmt> pending) {
+      int hash = 77382285;
+      hash = 31 * hash + Expr.shapeHash(expression);
+      return hash;
+    }
     final Expr expression;
   }
 
     abstract <R> R accept(Visitor<R> visitor);
+
+    volatile Map<Expr, ResultCache.Key> cacheCandidates;
 }
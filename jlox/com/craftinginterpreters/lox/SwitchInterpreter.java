@@ -0,0 +1,133 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Runs programs in the records form of the syntax tree (SealedExpr and SealedStmt, from
+ * GenerateAST --records)
+ *
+ * Instead of a call to accept() and a second call back into a visitor for every node,
+ * each node is taken apart with one pattern-matching switch over the sealed interface.
+ * The compiler checks that every record type is handled, and the JIT can compile the
+ * switch to a few type checks ordered by the types it has actually seen
+ *
+ * The operators, natives, print formatting and bench statement are Interpreter's, so the
+ * two give the same output and the same errors. Unlike Interpreter this one recurses, so
+ * very deep nesting can overflow the stack, and there's no tracing, budget, hash-consing,
+ * result cache or parallel evaluation - DispatchBenchmark times it against the visitor form
+ */
+class SwitchInterpreter {
+
+    //applies the operators and looks up names - it never evaluates a tree itself
+    private final Interpreter semantics;
+
+    //where print statements write to
+    private final PrintStream out;
+
+    SwitchInterpreter() {
+        this(System.out);
+    }
+
+    SwitchInterpreter(PrintStream out) {
+        this.out = out;
+        this.semantics = new Interpreter(null, out);
+    }
+
+    //bind a named input - value must be a Lox value (Double, Boolean, String or null for nil)
+    void define(String name, Object value) {
+        semantics.define(name, value);
+    }
+
+    void interpret(List<SealedStmt> statements) {
+        long startTime = System.nanoTime();
+        try {
+            for (SealedStmt statement : statements) {
+                execute(statement);
+            }
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            Metrics.global.interpretLatency.record(System.nanoTime() - startTime);
+        }
+    }
+
+    //run one statement - a RuntimeError propagates to the caller
+    void execute(SealedStmt stmt) {
+        switch (stmt) {
+            case SealedStmt.Expression(SealedExpr expression) -> evaluate(expression);
+            case SealedStmt.Print(SealedExpr expression) -> out.println(semantics.stringify(evaluate(expression)));
+            case SealedStmt.Bench(Token keyword, SealedExpr iterations, SealedExpr expression) ->
+                semantics.bench(keyword, evaluate(iterations), () -> evaluate(expression));
+        }
+        Metrics.global.statementsExecuted.increment();
+    }
+
+    //operands are evaluated left to right, as in Interpreter
+    Object evaluate(SealedExpr expr) {
+        return switch (expr) {
+            case SealedExpr.Literal(Object value) -> value;
+            case SealedExpr.Binary(SealedExpr left, Token operator, SealedExpr right) ->
+                semantics.binary(operator, evaluate(left), evaluate(right));
+            case SealedExpr.Unary(Token operator, SealedExpr right) ->
+                semantics.unary(operator, evaluate(right));
+            case SealedExpr.Grouping(SealedExpr expression) -> evaluate(expression);
+            case SealedExpr.Variable(Token name) -> semantics.variable(name);
+            case SealedExpr.Call(SealedExpr callee, Token paren, List<SealedExpr> arguments) -> {
+                Object function = evaluate(callee);
+                List<Object> values = new ArrayList<>(arguments.size());
+                for (SealedExpr argument : arguments) {
+                    values.add(evaluate(argument));
+                }
+                yield semantics.call(paren, function, values);
+            }
+        };
+    }
+
+    //convert a parsed program to the records form
+    static List<SealedStmt> convert(List<Stmt> statements) {
+        List<SealedStmt> converted = new ArrayList<>(statements.size());
+        for (Stmt statement : statements) {
+            converted.add(convert(statement));
+        }
+        return converted;
+    }
+
+    static SealedStmt convert(Stmt stmt) {
+        if (stmt instanceof Stmt.Print) {
+            return new SealedStmt.Print(convert(((Stmt.Print)stmt).expression));
+        }
+        if (stmt instanceof Stmt.Bench) {
+            Stmt.Bench bench = (Stmt.Bench)stmt;
+            return new SealedStmt.Bench(bench.keyword, convert(bench.iterations), convert(bench.expression));
+        }
+        return new SealedStmt.Expression(convert(((Stmt.Expression)stmt).expression));
+    }
+
+    static SealedExpr convert(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            return new SealedExpr.Binary(convert(binary.left), binary.operator, convert(binary.right));
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            return new SealedExpr.Unary(unary.operator, convert(unary.right));
+        }
+        if (expr instanceof Expr.Grouping) {
+            return new SealedExpr.Grouping(convert(((Expr.Grouping)expr).expression));
+        }
+        if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+            List<SealedExpr> arguments = new ArrayList<>(call.arguments.size());
+            for (Expr argument : call.arguments) {
+                arguments.add(convert(argument));
+            }
+            return new SealedExpr.Call(convert(call.callee), call.paren, arguments);
+        }
+        if (expr instanceof Expr.Variable) {
+            return new SealedExpr.Variable(((Expr.Variable)expr).name);
+        }
+        return new SealedExpr.Literal(((Expr.Literal)expr).value);
+    }
+}
@@ -18,7 +18,7 @@ enum TokenType {
 
     //Keywords
     AND, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR, //todo: change FUN to FUNC and NIL to NULL ??
-    PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE,
+    PRINT, RETURN, SUPER, THIS, TRUE, VAR, WHILE, BENCH,
 
     EOF
 }
\ No newline at end of file
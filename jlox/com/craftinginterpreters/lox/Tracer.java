@@ -0,0 +1,185 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+
+/*
+ * Records what the interpreter has been evaluating into a fixed-size ring buffer
+ * so that when something goes wrong we can see the last few steps leading up to it
+ *
+ * Everything is preallocated as primitive arrays up front - recording an event is
+ * just a few array stores, with no allocation or boxing, so it's cheap enough to leave on
+ */
+class Tracer {
+
+    //kinds of event we record
+    static final byte BINARY     = 0;
+    static final byte GROUPING   = 1;
+    static final byte LITERAL    = 2;
+    static final byte UNARY      = 3;
+    static final byte EXPRESSION = 4;
+    static final byte PRINT      = 5;
+    static final byte ERROR      = 6;
+    static final byte VARIABLE   = 7;
+    static final byte CALL       = 8;
+    static final byte BENCH      = 9;
+
+    private static final String[] KIND_NAMES = {
+        "binary", "grouping", "literal", "unary", "expression", "print", "error", "variable",
+        "call", "bench"
+    };
+
+    //type of the value an event produced
+    static final byte NIL     = 0;
+    static final byte BOOLEAN = 1;
+    static final byte NUMBER  = 2;
+    static final byte STRING  = 3;
+    static final byte OTHER   = 4;
+    static final byte NONE    = 5;
+
+    //line of an event that has no token of its own to take it from
+    static final int UNKNOWN_LINE = -1;
+
+    private static final String[] TYPE_NAMES = {
+        "nil", "boolean", "number", "string", "other", "-"
+    };
+
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    //one slot in each array per event (struct-of-arrays, so nothing is boxed)
+    private final byte[] kinds;
+    private final int[] lines;
+    private final byte[] operators; //TokenType ordinal, or -1 if the node has no operator
+    private final byte[] results;
+
+    //capacity is always a power of 2 so we can wrap with a mask instead of %
+    private final int mask;
+
+    //total number of events ever recorded - the next slot to write is (count & mask)
+    private long count = 0;
+
+    //line of the latest token seen in the current statement - statements don't carry
+    //a token (other than bench), so they're attributed to it when they finish
+    private int line = UNKNOWN_LINE;
+
+    Tracer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Trace capacity must be positive.");
+        }
+        //round up to the next power of 2
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+
+        kinds = new byte[size];
+        lines = new int[size];
+        operators = new byte[size];
+        results = new byte[size];
+        mask = size - 1;
+    }
+
+    //build a tracer from -Dlox.trace=<events>, or return null if tracing is off
+    static Tracer fromSystemProperty() {
+        int capacity = Integer.getInteger("lox.trace", 0);
+        if (capacity <= 0) return null;
+        return new Tracer(capacity);
+    }
+
+    //record that an expression was evaluated and produced 'value'
+    void expression(Expr expr, Object value) {
+        if (expr instanceof Expr.Binary) {
+            Token operator = ((Expr.Binary)expr).operator;
+            line = operator.line;
+            record(BINARY, line, operator.type.ordinal(), typeOf(value));
+        } else if (expr instanceof Expr.Unary) {
+            Token operator = ((Expr.Unary)expr).operator;
+            line = operator.line;
+            record(UNARY, line, operator.type.ordinal(), typeOf(value));
+        } else if (expr instanceof Expr.Literal) {
+            //evaluated before its parent, so there's no line of its own to give it yet
+            record(LITERAL, UNKNOWN_LINE, -1, typeOf(value));
+        } else if (expr instanceof Expr.Call) {
+            line = ((Expr.Call)expr).paren.line;
+            record(CALL, line, -1, typeOf(value));
+        } else if (expr instanceof Expr.Variable) {
+            line = ((Expr.Variable)expr).name.line;
+            record(VARIABLE, line, -1, typeOf(value));
+        } else {
+            record(GROUPING, UNKNOWN_LINE, -1, typeOf(value));
+        }
+    }
+
+    //a statement is starting - nothing seen so far belongs to it
+    void enter() {
+        line = UNKNOWN_LINE;
+    }
+
+    //record that a statement finished executing
+    void statement(Stmt stmt) {
+        byte kind = EXPRESSION;
+        if (stmt instanceof Stmt.Print) kind = PRINT;
+        else if (stmt instanceof Stmt.Bench) {
+            kind = BENCH;
+            line = ((Stmt.Bench)stmt).keyword.line;
+        }
+        record(kind, line, -1, NONE);
+        line = UNKNOWN_LINE;
+    }
+
+    //record the runtime error that stopped execution
+    void error(RuntimeError error) {
+        record(ERROR, error.token.line, error.token.type.ordinal(), NONE);
+        line = UNKNOWN_LINE;
+    }
+
+    private void record(byte kind, int line, int operator, byte result) {
+        int slot = (int)(count++ & mask);
+        kinds[slot] = kind;
+        lines[slot] = line;
+        operators[slot] = (byte)operator;
+        results[slot] = result;
+    }
+
+    private static byte typeOf(Object value) {
+        if (value == null) return NIL;
+        if (value instanceof Boolean) return BOOLEAN;
+        if (value instanceof Double) return NUMBER;
+        if (value instanceof String) return STRING;
+        return OTHER;
+    }
+
+    //how many events are currently held in the buffer
+    int size() {
+        return (int)Math.min(count, mask + 1);
+    }
+
+    //forget everything recorded so far (the buffers themselves are reused)
+    void clear() {
+        count = 0;
+        line = UNKNOWN_LINE;
+    }
+
+    //print every buffered event, oldest first
+    void dump(PrintStream out) {
+        dump(out, size());
+    }
+
+    //print the last n buffered events, oldest first
+    void dump(PrintStream out, int n) {
+        n = Math.min(n, size());
+        out.println("--- last " + n + " of " + count + " trace events ---");
+        for (long i = count - n; i < count; i++) {
+            int slot = (int)(i & mask);
+            StringBuilder builder = new StringBuilder();
+            builder.append("[line ");
+            if (lines[slot] == UNKNOWN_LINE) builder.append('?');
+            else builder.append(lines[slot]);
+            builder.append("] ").append(KIND_NAMES[kinds[slot]]);
+            if (operators[slot] >= 0) {
+                builder.append(' ').append(TOKEN_TYPES[operators[slot]]);
+            }
+            if (results[slot] != NONE) {
+                builder.append(" -> ").append(TYPE_NAMES[results[slot]]);
+            }
+            out.println(builder);
+        }
+    }
+}
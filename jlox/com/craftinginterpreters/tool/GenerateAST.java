@@ -2,18 +2,24 @@ package com.craftinginterpreters.tool;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 /*
  * Automatically generates our abstract syntax tree(s)
  * so we don't have to do it by hand
+ *
+ * By default the trees are abstract classes with a visitor (Expr, Stmt). With --records
+ * the same node types are written as sealed interfaces of records instead (SealedExpr,
+ * SealedStmt), which are taken apart with pattern-matching switches rather than visitors
  */
 public class GenerateAST {
     
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-        System.out.println("Usage: generate_ast <output-directory>");
+        boolean records = args.length == 2 && args[1].equals("--records");
+        if (args.length != 1 && !records) {
+        System.out.println("Usage: generate_ast <output-directory> [--records]");
         System.exit(64);
         }
 
@@ -26,25 +32,43 @@ public class GenerateAST {
         //grouping - i.e brackets () - just surround one expression
         //literal - i.e. x - has a value
         //unary - i.e. -10 - has an operator and a right operand
-        defineAst(outputDir, "Expr", Arrays.asList (
+        //variable - i.e. x - a named input supplied from outside the script
+        //call - i.e. clock() - calls a native function with a list of arguments
+        List<String> exprTypes = Arrays.asList (
             "Binary     : Expr left, Token operator, Expr right",
+            "Call       : Expr callee, Token paren, List<Expr> arguments",
             "Grouping   : Expr expression",
             "Literal    : Object value",
-            "Unary      : Token operator, Expr right"
-        ));
+            "Unary      : Token operator, Expr right",
+            "Variable   : Token name"
+        );
 
-        defineAst(outputDir, "Stmt", Arrays.asList(
+        //bench - i.e. bench 1000, x + y; - times an expression over a number of iterations
+        List<String> stmtTypes = Arrays.asList(
+            "Bench      : Token keyword, Expr iterations, Expr expression",
             "Expression : Expr expression",
             "Print      : Expr expression"
-        ));
+        );
+
+        if (records) {
+            defineSealedAst(outputDir, "Expr", exprTypes);
+            defineSealedAst(outputDir, "Stmt", stmtTypes);
+        } else {
+            defineAst(outputDir, "Expr", exprTypes, Arrays.asList());
+            //every statement keeps the subtrees ResultCache looks up, found the first time it runs
+            defineAst(outputDir, "Stmt", stmtTypes, Arrays.asList(
+                "volatile Map<Expr, ResultCache.Key> cacheCandidates"
+            ));
+        }
 
     }
 
 
     //actual defineAst method
     //writes the abstract syntax tree to a file ('baseName'.java)
+    //'baseFields' are mutable fields every node of the tree has, i.e. "volatile int uses"
     private static void defineAst(
-            String outputDir, String baseName, List<String> types)
+            String outputDir, String baseName, List<String> types, List<String> baseFields)
             throws IOException {
 
         String path = outputDir + "/" + baseName + ".java";
@@ -52,11 +76,16 @@ public class GenerateAST {
 
         writer.println("package com.craftinginterpreters.lox;");
         writer.println();
+        boolean maps = baseFields.stream().anyMatch(field -> field.contains("Map<"));
+        writer.println("import java.util.ArrayList;");
         writer.println("import java.util.List;");
+        if (maps) writer.println("import java.util.Map;");
+        writer.println("import java.util.Objects;");
         writer.println();
         writer.println("abstract class " + baseName + " {" );
 
         defineVisitor(writer, baseName, types);
+        defineShape(writer, baseName);
 
         //The AST classes
         for (String type : types) {
@@ -72,6 +101,11 @@ public class GenerateAST {
         writer.println();
         writer.println("    abstract <R> R accept(Visitor<R> visitor);");
 
+        for (String field : baseFields) {
+            writer.println();
+            writer.println("    " + field + ";");
+        }
+
         writer.println("}");
         writer.close();
 
@@ -103,6 +137,8 @@ public class GenerateAST {
             className + baseName + "(this);");
         writer.println("    }");
 
+        defineTypeShape(writer, baseName, className, fields);
+
         //fields
         for (String field : fields) {
             writer.println("    final " + field + ";");
@@ -112,6 +148,116 @@ public class GenerateAST {
         
     }
 
+    //structural equality and hashing for 'baseName' - two trees have the same shape if they
+    //have the same kinds of node with the same operators, names and values, whatever their lines
+    //both walk the trees with an explicit stack, so a tree of any depth can be compared
+    //equals() and hashCode() are left as identity: nodes are map keys that must tell copies apart
+    private static void defineShape(PrintWriter writer, String baseName) {
+        writer.println();
+        writer.println("    //structural equality - the same kinds of node with the same operators, names and");
+        writer.println("    //values, on any lines (equals() is identity, so copies of a node stay apart as keys)");
+        writer.println("    static boolean sameShape(" + baseName + " a, " + baseName + " b) {");
+        writer.println("      //pairs of nodes still to compare - an explicit stack, so depth doesn't matter");
+        writer.println("      List<" + baseName + "> pending = new ArrayList<>();");
+        writer.println("      pending.add(a);");
+        writer.println("      pending.add(b);");
+        writer.println("      while (!pending.isEmpty()) {");
+        writer.println("        " + baseName + " right = pending.remove(pending.size() - 1);");
+        writer.println("        " + baseName + " left = pending.remove(pending.size() - 1);");
+        writer.println("        if (left == right) continue;");
+        writer.println("        if (left == null || right == null || left.getClass() != right.getClass()) return false;");
+        writer.println("        if (!left.sameFields(right, pending)) return false;");
+        writer.println("      }");
+        writer.println("      return true;");
+        writer.println("    }");
+        writer.println();
+        writer.println("    //structural hash - equal for any two trees with the same shape");
+        writer.println("    static int shapeHash(" + baseName + " node) {");
+        writer.println("      List<" + baseName + "> pending = new ArrayList<>();");
+        writer.println("      pending.add(node);");
+        writer.println("      int hash = 1;");
+        writer.println("      while (!pending.isEmpty()) {");
+        writer.println("        " + baseName + " next = pending.remove(pending.size() - 1);");
+        writer.println("        hash = 31 * hash + (next == null ? 0 : next.fieldHash(pending));");
+        writer.println("      }");
+        writer.println("      return hash;");
+        writer.println("    }");
+        writer.println();
+        writer.println("    //compare this node's own fields with those of 'other', a node of the same class,");
+        writer.println("    //adding each pair of child nodes to 'pending' to be compared after");
+        writer.println("    abstract boolean sameFields(" + baseName + " other, List<" + baseName + "> pending);");
+        writer.println();
+        writer.println("    //hash this node's own fields, adding its child nodes to 'pending' to be hashed after");
+        writer.println("    abstract int fieldHash(List<" + baseName + "> pending);");
+        writer.println();
+        writer.println("    //tokens match on what they say, not where they are");
+        writer.println("    private static boolean sameToken(Token a, Token b) {");
+        writer.println("      return a.type == b.type && a.lexeme.equals(b.lexeme) && Objects.equals(a.literal, b.literal);");
+        writer.println("    }");
+        writer.println();
+        writer.println("    private static int tokenHash(Token token) {");
+        writer.println("      return Objects.hash(token.type, token.lexeme, token.literal);");
+        writer.println("    }");
+        writer.println();
+    }
+
+    //the sameFields() and fieldHash() of one node type: a field of the tree's own type is
+    //left to the caller's stack, a field of another tree (an Expr in a Stmt) is compared whole
+    private static void defineTypeShape(
+            PrintWriter writer, String baseName, String className, String[] fields) {
+
+        writer.println();
+        writer.println("    @Override");
+        writer.println("    boolean sameFields(" + baseName + " node, List<" + baseName + "> pending) {");
+        writer.println("      " + className + " other = (" + className + ")node;");
+        List<String> checks = new ArrayList<>();
+        for (String field : fields) {
+            String type = field.split(" ")[0];
+            String name = field.split(" ")[1];
+            if (type.equals(baseName)) {
+                writer.println("      pending.add(" + name + ");");
+                writer.println("      pending.add(other." + name + ");");
+            } else if (type.equals("List<" + baseName + ">")) {
+                checks.add(name + ".size() == other." + name + ".size()");
+                writer.println("      for (int i = 0; i < Math.min(" + name + ".size(), other." + name + ".size()); i++) {");
+                writer.println("        pending.add(" + name + ".get(i));");
+                writer.println("        pending.add(other." + name + ".get(i));");
+                writer.println("      }");
+            } else if (type.equals("Expr") || type.equals("Stmt")) {
+                checks.add(type + ".sameShape(" + name + ", other." + name + ")");
+            } else if (type.equals("Token")) {
+                checks.add("sameToken(" + name + ", other." + name + ")");
+            } else {
+                checks.add("Objects.equals(" + name + ", other." + name + ")");
+            }
+        }
+        writer.println("      return " + (checks.isEmpty() ? "true" : String.join("\n          && ", checks)) + ";");
+        writer.println("    }");
+
+        writer.println();
+        writer.println("    @Override");
+        writer.println("    int fieldHash(List<" + baseName + "> pending) {");
+        writer.println("      int hash = " + className.hashCode() + ";");
+        for (String field : fields) {
+            String type = field.split(" ")[0];
+            String name = field.split(" ")[1];
+            if (type.equals(baseName)) {
+                writer.println("      pending.add(" + name + ");");
+            } else if (type.equals("List<" + baseName + ">")) {
+                writer.println("      hash = 31 * hash + " + name + ".size();");
+                writer.println("      pending.addAll(" + name + ");");
+            } else if (type.equals("Expr") || type.equals("Stmt")) {
+                writer.println("      hash = 31 * hash + " + type + ".shapeHash(" + name + ");");
+            } else if (type.equals("Token")) {
+                writer.println("      hash = 31 * hash + tokenHash(" + name + ");");
+            } else {
+                writer.println("      hash = 31 * hash + Objects.hashCode(" + name + ");");
+            }
+        }
+        writer.println("      return hash;");
+        writer.println("    }");
+    }
+
     private static void defineVisitor(
             PrintWriter writer, String baseName, List<String> types) {
 
@@ -127,5 +273,36 @@ public class GenerateAST {
 
     }
 
-}
+    //the --records form of defineAst
+    //writes 'baseName' as a sealed interface ('Sealed' + 'baseName'.java) with one record per type
+    //records come with their own accessors, equals() and hashCode(), and as the interface is
+    //sealed a switch over its records is checked to be exhaustive - so there's no visitor
+    private static void defineSealedAst(
+            String outputDir, String baseName, List<String> types)
+            throws IOException {
 
+        String interfaceName = "Sealed" + baseName;
+        String path = outputDir + "/" + interfaceName + ".java";
+        PrintWriter writer = new PrintWriter(path, "UTF-8");
+
+        writer.println("package com.craftinginterpreters.lox;");
+        writer.println();
+        if (types.stream().anyMatch(type -> type.contains("List<"))) {
+            writer.println("import java.util.List;");
+            writer.println();
+        }
+        writer.println("sealed interface " + interfaceName + " {");
+
+        for (String type : types) {
+            String className = type.split(":")[0].trim();
+            //node fields point at the sealed trees too, i.e. "Expr left" becomes "SealedExpr left"
+            String fields = type.split(":")[1].trim().replaceAll("\\b(Expr|Stmt)\\b", "Sealed$1");
+            writer.println("    record " + className + "(" + fields + ") implements " + interfaceName + " {}");
+        }
+
+        writer.println("}");
+        writer.close();
+
+    }
+
+}